@@ -33,6 +33,7 @@ import android.animation.TimeInterpolator;
 import android.animation.ValueAnimator;
 import android.annotation.DrawableRes;
 import android.app.StatusBarManager;
+import android.app.WindowConfiguration;
 import android.content.Context;
 import android.content.res.Configuration;
 import android.database.ContentObserver;
@@ -41,8 +42,12 @@ import android.graphics.Point;
 import android.graphics.Rect;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.ArrayMap;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.util.SparseArray;
 import android.view.ContextThemeWrapper;
 import android.view.Display;
@@ -75,6 +80,7 @@ import com.android.systemui.navigationbar.buttons.RotationContextButton;
 import com.android.systemui.navigationbar.gestural.EdgeBackGestureHandler;
 import com.android.systemui.recents.Recents;
 import com.android.systemui.res.R;
+import com.android.systemui.rotation.RotationSettingsHub;
 import com.android.systemui.settings.DisplayTracker;
 import com.android.systemui.shade.ShadeViewController;
 import com.android.systemui.shared.rotation.FloatingRotationButton;
@@ -95,10 +101,6 @@ import java.util.Optional;
 import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 
-import android.database.ContentObserver;
-import android.os.Handler;
-import android.os.Looper;
-import android.provider.Settings;
 
 /** */
 public class NavigationBarView extends FrameLayout {
@@ -128,6 +130,8 @@ public class NavigationBarView extends FrameLayout {
     private KeyButtonDrawable mHomeDefaultIcon;
     private KeyButtonDrawable mRecentIcon;
     private KeyButtonDrawable mDockedIcon;
+    // Home and docked icons per (resource, rotation), see getOrientedDrawable().
+    private final LongSparseArray<KeyButtonDrawable> mOrientedIcons = new LongSparseArray<>();
     private KeyButtonDrawable mCursorRightIcon;
     private KeyButtonDrawable mCursorLeftIcon;
     private Context mLightContext;
@@ -165,6 +169,7 @@ public class NavigationBarView extends FrameLayout {
     private FloatingRotationButton mFloatingRotationButton;
     private RotationButtonController mRotationButtonController;
     private VideoRotationController mVideoRotationController;
+    private final RotationSettingsHub mRotationSettingsHub;
 
     /**
      * Helper that is responsible for showing the right toast when a disallowed activity operation
@@ -193,40 +198,137 @@ public class NavigationBarView extends FrameLayout {
     private boolean mShowCursorKeys;
     private boolean mImeVisible;
 
-    private static final String KEY_CUSTOM_ROTATION_MODE = "custom_rotation_mode";
     private int mLastCustomRotationMode = -1;
-
-    private final ContentObserver mCustomRotationModeObserver =
-            new ContentObserver(new Handler(Looper.getMainLooper())) {
+    // Inputs of the last reorient(), and how mode changes were handled (see dump()).
+    private int mLastReorientSignature = -1;
+    private int mModeRelayoutsPerformed;
+    private int mModeRelayoutsAvoided;
+    // Cost of updateCurrentView(): layout flips with their duration, and early returns.
+    private int mViewFlips;
+    private long mViewFlipTotalNanos;
+    private long mViewFlipMaxNanos;
+    private long mLastViewFlipNanos = -1;
+    private int mViewFlipsSkipped;
+    // Button regions as of the last touch region notification.
+    private final ArrayMap<View, Rect> mLastTouchRegions = new ArrayMap<>();
+    private int mTouchRegionSignature = -1;
+    private int mTouchRegionNotifiesSkipped;
+
+    // Dimensions used by onMeasure(), see updateNavBarDimensions().
+    private int mNavBarHeight;
+    private int mNavBarHeightLandscape;
+    private int mNavBarFrameHeight;
+    // Reused for the gestural background frame, handed to mBarTransitions on every measure.
+    private final Rect mBackgroundFrame = new Rect();
+
+    // Hidden buttons as last applied by updateNavButtonIcons(), -1 when unknown.
+    private static final int NAV_STATE_HIDE_BACK = 1;
+    private static final int NAV_STATE_HIDE_HOME = 1 << 1;
+    private static final int NAV_STATE_HIDE_RECENT = 1 << 2;
+    private static final int NAV_STATE_HIDE_HOME_HANDLE = 1 << 3;
+    private static final int NAV_STATE_HIDE_CURSOR_KEYS = 1 << 4;
+    private static final int NAV_STATE_HIDE_IME_SWITCHER = 1 << 5;
+    private int mNavButtonState = -1;
+    private View mNavButtonStateView;
+    private KeyButtonDrawable mAppliedHomeIcon;
+    private KeyButtonDrawable mAppliedBackIcon;
+    private KeyButtonDrawable mAppliedRecentsIcon;
+    private KeyButtonDrawable mAppliedCursorLeftIcon;
+    private KeyButtonDrawable mAppliedCursorRightIcon;
+
+    private final VideoRotationController.Callback mVideoRotationCallback =
+            new VideoRotationController.Callback() {
                 @Override
-                public void onChange(boolean selfChange) {
-                    applyCustomRotationMode();
+                public void onRotationImminent(int targetRotation) {
+                    prewarmForRotation(targetRotation);
                 }
             };
 
-    private void applyCustomRotationMode() {
-        final int mode = Settings.System.getInt(
-                mContext.getContentResolver(),
-                KEY_CUSTOM_ROTATION_MODE,
-                0
-        );
+    private final RotationSettingsHub.Listener mCustomRotationModeListener =
+            (key, value) -> applyCustomRotationMode(value);
 
+    private void applyCustomRotationMode(int mode) {
         if (mode == mLastCustomRotationMode) return;
         mLastCustomRotationMode = mode;
 
         final boolean contextual = (mode == 2);
 
-        if (mVideoRotationController != null) {
-            if (contextual) {
-                mVideoRotationController.start();
-            } else {
-                mVideoRotationController.stop();
-            }
+        if (contextual) {
+            getOrCreateVideoRotationController().start();
+        } else if (mVideoRotationController != null) {
+            mVideoRotationController.stop();
         }
 
         // (opcional) se você quiser mudar ícones/visuais da navbar nesse modo
         updateNavButtonIcons();
-        reorient();
+        // The mode itself has no layout impact, only relayout if an orientation input moved.
+        if (needsReorient()) {
+            mModeRelayoutsPerformed++;
+            reorient();
+        } else {
+            mModeRelayoutsAvoided++;
+        }
+    }
+
+    /**
+     * Packs what {@link #reorient()} depends on: display rotation, vertical layout, layout
+     * direction and nav bar mode. Returns -1 while the display rotation is undefined.
+     */
+    private int computeReorientSignature() {
+        final int rotation = mConfiguration.windowConfiguration.getDisplayRotation();
+        if (rotation == WindowConfiguration.ROTATION_UNDEFINED) {
+            return -1;
+        }
+        return (rotation & 3)
+                | (mIsVertical ? 1 << 2 : 0)
+                | (getLayoutDirection() == View.LAYOUT_DIRECTION_RTL ? 1 << 3 : 0)
+                | (mNavBarMode << 4);
+    }
+
+    private boolean needsReorient() {
+        if (mCurrentView != (mIsVertical ? mVertical : mHorizontal)) return true;
+        final int signature = computeReorientSignature();
+        // Nothing to compare against while either signature is unknown.
+        return signature == -1 || signature != mLastReorientSignature;
+    }
+
+    /**
+     * The controller and its service lookups are only needed once contextual mode is used, so
+     * they are created on first use instead of during nav bar inflation.
+     */
+    private VideoRotationController getOrCreateVideoRotationController() {
+        if (mVideoRotationController == null) {
+            Trace.beginSection("NavigationBarView#createVideoRotationController");
+            mVideoRotationController = new VideoRotationController(mContext, mBgExecutor,
+                    mRotationSettingsHub);
+            mVideoRotationController.addCallback(mVideoRotationCallback);
+            Trace.endSection();
+        }
+        return mVideoRotationController;
+    }
+
+    /**
+     * While the video controller drives rotation for the focused task, a suggestion would only
+     * propose the rotation it is about to apply. Checked by both rotation buttons when
+     * RotationButtonController asks whether to accept a proposal.
+     */
+    private boolean isRotationProposalSuppressed() {
+        return mVideoRotationController != null
+                && mVideoRotationController.shouldSuppressRotationProposal();
+    }
+
+    /**
+     * Creates the icon variants the layout for {@code targetRotation} will use, so the flip after
+     * the configuration change only swaps drawables.
+     */
+    private void prewarmForRotation(int targetRotation) {
+        final boolean flips = (targetRotation % 2) != (mCurrentRotation % 2);
+        final boolean vertical = flips && !isGesturalMode(mNavBarMode) ? !mIsVertical : mIsVertical;
+        final int degrees = vertical ? 90 : 0;
+        getOrientedDrawable(getHomeIconRes(), degrees);
+        if (mDockedStackExists) {
+            getOrientedDrawable(R.drawable.ic_sysbar_docked, degrees);
+        }
     }
 
     private class NavTransitionListener implements TransitionListener {
@@ -312,6 +414,7 @@ public class NavigationBarView extends FrameLayout {
                         // to hide, tell the statusbar to keep it around for longer
                         mAutoHideController.touchAutoHide();
                     }
+                    // The rotation button lives outside nav_buttons, always notify for it.
                     notifyActiveTouchRegions();
                 }
 
@@ -332,6 +435,7 @@ public class NavigationBarView extends FrameLayout {
         mDarkIconColor = Utils.getColorAttrDefaultColor(darkContext, R.attr.singleToneColor);
         mIsVertical = false;
         mLongClickableAccessibilityButton = false;
+        mRotationSettingsHub = RotationSettingsHub.getInstance(context);
 
         // Set up the context group of buttons
         mContextualButtonGroup = new ContextualButtonGroup(R.id.menu_container);
@@ -347,7 +451,12 @@ public class NavigationBarView extends FrameLayout {
         mContextualButtonGroup.addButton(imeSwitcherButton);
         mContextualButtonGroup.addButton(accessibilityButton);
         mRotationContextButton = new RotationContextButton(R.id.rotate_suggestion,
-                mLightContext, R.drawable.ic_sysbar_rotate_button_ccw_start_0);
+                mLightContext, R.drawable.ic_sysbar_rotate_button_ccw_start_0) {
+            @Override
+            public boolean acceptRotationProposal() {
+                return !isRotationProposalSuppressed() && super.acceptRotationProposal();
+            }
+        };
         mFloatingRotationButton = new FloatingRotationButton(mContext,
                 R.string.accessibility_rotate_button,
                 R.layout.rotate_suggestion,
@@ -358,7 +467,12 @@ public class NavigationBarView extends FrameLayout {
                 R.dimen.floating_rotation_button_taskbar_bottom_margin,
                 R.dimen.floating_rotation_button_diameter,
                 R.dimen.key_button_ripple_max_width,
-                R.bool.floating_rotation_button_position_left);
+                R.bool.floating_rotation_button_position_left) {
+            @Override
+            public boolean acceptRotationProposal() {
+                return !isRotationProposalSuppressed() && super.acceptRotationProposal();
+            }
+        };
         mRotationButtonController = new RotationButtonController(mLightContext, mLightIconColor,
                 mDarkIconColor, R.drawable.ic_sysbar_rotate_button_ccw_start_0,
                 R.drawable.ic_sysbar_rotate_button_ccw_start_90,
@@ -366,10 +480,10 @@ public class NavigationBarView extends FrameLayout {
                 R.drawable.ic_sysbar_rotate_button_cw_start_90,
                 () -> mCurrentRotation);
 
-        mVideoRotationController = new VideoRotationController(mContext);
         mConfiguration = new Configuration();
         mTmpLastConfiguration = new Configuration();
         mConfiguration.updateFrom(context.getResources().getConfiguration());
+        updateNavBarDimensions();
 
         mScreenPinningNotify = new ScreenPinningNotify(mContext);
 
@@ -539,8 +653,13 @@ public class NavigationBarView extends FrameLayout {
         final boolean densityChange = oldConfig.densityDpi != mConfiguration.densityDpi;
         final boolean dirChange = oldConfig.getLayoutDirection() != mConfiguration.getLayoutDirection();
 
+        if (densityChange) {
+            // Oriented variants are rasterized for the old density.
+            mOrientedIcons.clear();
+        }
         if (orientationChange || densityChange) {
-            mDockedIcon = getDrawable(R.drawable.ic_sysbar_docked);
+            mDockedIcon = getOrientedDrawable(R.drawable.ic_sysbar_docked,
+                    mDockedStackExists && mIsVertical ? 90 : 0);
             mHomeDefaultIcon = getHomeDrawable();
         }
         if (densityChange || dirChange) {
@@ -581,10 +700,27 @@ public class NavigationBarView extends FrameLayout {
     }
 
     public KeyButtonDrawable getHomeDrawable() {
-        KeyButtonDrawable drawable = mShowSwipeUpUi
-                ? getDrawable(R.drawable.ic_sysbar_home_quick_step)
-                : getDrawable(R.drawable.ic_sysbar_home);
-        orientHomeButton(drawable);
+        return getOrientedDrawable(getHomeIconRes(), mIsVertical ? 90 : 0);
+    }
+
+    @DrawableRes
+    private int getHomeIconRes() {
+        return mShowSwipeUpUi ? R.drawable.ic_sysbar_home_quick_step : R.drawable.ic_sysbar_home;
+    }
+
+    /**
+     * Returns the drawable for {@code icon} rotated by {@code degrees}. Every variant is created
+     * and rotated once, so a vertical/horizontal flip swaps drawables instead of rotating and
+     * re-rasterizing a shared one.
+     */
+    private KeyButtonDrawable getOrientedDrawable(@DrawableRes int icon, int degrees) {
+        final long key = ((long) icon << 32) | (degrees & 0xffffffffL);
+        KeyButtonDrawable drawable = mOrientedIcons.get(key);
+        if (drawable == null) {
+            drawable = getDrawable(icon);
+            drawable.setRotation(degrees);
+            mOrientedIcons.put(key, drawable);
+        }
         return drawable;
     }
 
@@ -615,10 +751,6 @@ public class NavigationBarView extends FrameLayout {
         navBarAnimator.start();
     }
 
-    private void orientHomeButton(KeyButtonDrawable drawable) {
-        drawable.setRotation(mIsVertical ? 90 : 0);
-    }
-
     private KeyButtonDrawable getDrawable(@DrawableRes int icon) {
         return KeyButtonDrawable.create(mLightContext, mLightIconColor, mDarkIconColor, icon,
                 true /* hasShadow */, null /* ovalBackgroundColor */);
@@ -683,18 +815,80 @@ public class NavigationBarView extends FrameLayout {
         KeyButtonDrawable backIcon = mBackIcon;
         orientBackButton(backIcon);
         KeyButtonDrawable homeIcon = mHomeDefaultIcon;
-        KeyButtonDrawable cursorLeftIcon = mCursorLeftIcon;
-        KeyButtonDrawable cursorRightIcon = mCursorRightIcon;
         if (!mUseCarModeUi) {
-            orientHomeButton(homeIcon);
+            homeIcon = mHomeDefaultIcon = getHomeDrawable();
         }
-        getHomeButton().setImageDrawable(homeIcon);
-        getBackButton().setImageDrawable(backIcon);
-        getCursorLeftButton().setImageDrawable(cursorLeftIcon);
-        getCursorRightButton().setImageDrawable(cursorRightIcon);
 
-        updateRecentsIcon();
+        if (mCurrentView != mNavButtonStateView) {
+            // New current view (reorient/reinflate): nothing applied to it is known yet.
+            mNavButtonStateView = mCurrentView;
+            mNavButtonState = -1;
+            mAppliedHomeIcon = mAppliedBackIcon = mAppliedRecentsIcon = null;
+            mAppliedCursorLeftIcon = mAppliedCursorRightIcon = null;
+            ViewGroup navButtons = getCurrentView().findViewById(R.id.nav_buttons);
+            if (navButtons != null) {
+                LayoutTransition lt = navButtons.getLayoutTransition();
+                if (lt != null) {
+                    if (!lt.getTransitionListeners().contains(mTransitionListener)) {
+                        lt.addTransitionListener(mTransitionListener);
+                    }
+                }
+            }
+        }
 
+        boolean iconsChanged = false;
+        if (mAppliedHomeIcon != homeIcon) {
+            getHomeButton().setImageDrawable(homeIcon);
+            mAppliedHomeIcon = homeIcon;
+            iconsChanged = true;
+        }
+        if (mAppliedBackIcon != backIcon) {
+            getBackButton().setImageDrawable(backIcon);
+            mAppliedBackIcon = backIcon;
+            iconsChanged = true;
+        }
+        if (mAppliedCursorLeftIcon != mCursorLeftIcon) {
+            getCursorLeftButton().setImageDrawable(mCursorLeftIcon);
+            mAppliedCursorLeftIcon = mCursorLeftIcon;
+            iconsChanged = true;
+        }
+        if (mAppliedCursorRightIcon != mCursorRightIcon) {
+            getCursorRightButton().setImageDrawable(mCursorRightIcon);
+            mAppliedCursorRightIcon = mCursorRightIcon;
+            iconsChanged = true;
+        }
+        iconsChanged |= updateRecentsIconInternal();
+        if (iconsChanged) {
+            mBarTransitions.reapplyDarkIntensity();
+        }
+
+        final int state = computeNavButtonState(useAltBack);
+        final int changed = state ^ mNavButtonState;
+        if (changed == 0) {
+            return;
+        }
+        mNavButtonState = state;
+
+        if ((changed & NAV_STATE_HIDE_IME_SWITCHER) != 0) {
+            mContextualButtonGroup.setButtonVisibility(R.id.ime_switcher,
+                    (state & NAV_STATE_HIDE_IME_SWITCHER) == 0);
+        }
+        applyNavButtonVisibility(getBackButton(), state, changed, NAV_STATE_HIDE_BACK);
+        applyNavButtonVisibility(getHomeButton(), state, changed, NAV_STATE_HIDE_HOME);
+        applyNavButtonVisibility(getRecentsButton(), state, changed, NAV_STATE_HIDE_RECENT);
+        applyNavButtonVisibility(getHomeHandle(), state, changed, NAV_STATE_HIDE_HOME_HANDLE);
+        applyNavButtonVisibility(getCursorLeftButton(), state, changed,
+                NAV_STATE_HIDE_CURSOR_KEYS);
+        applyNavButtonVisibility(getCursorRightButton(), state, changed,
+                NAV_STATE_HIDE_CURSOR_KEYS);
+        notifyActiveTouchRegionsIfChanged();
+    }
+
+    /**
+     * Folds the inputs of {@link #updateNavButtonIcons()} (hints, disable flags, nav mode, IME,
+     * screen pinning, overview proxy) into the set of hidden buttons, as NAV_STATE_* bits.
+     */
+    private int computeNavButtonState(boolean useAltBack) {
         boolean disableCursorKeys = !mShowCursorKeys || !useAltBack ||
                 (QuickStepContract.isGesturalMode(mNavBarMode) && mImeVisible);
 
@@ -703,9 +897,6 @@ public class NavigationBarView extends FrameLayout {
                 (mNavigationIconHints & StatusBarManager.NAVIGATION_HINT_IME_SWITCHER_SHOWN) == 0
                 || isImeRenderingNavButtons()
                 || (!QuickStepContract.isSwipeUpMode(mNavBarMode) && !disableCursorKeys);
-        mContextualButtonGroup.setButtonVisibility(R.id.ime_switcher, !disableImeSwitcher);
-
-        mBarTransitions.reapplyDarkIntensity();
 
         boolean disableHome = isGesturalMode(mNavBarMode)
                 || ((mDisabledFlags & View.STATUS_BAR_DISABLE_HOME) != 0);
@@ -734,23 +925,19 @@ public class NavigationBarView extends FrameLayout {
             disableBack = disableRecent = false;
         }
 
-        ViewGroup navButtons = getCurrentView().findViewById(R.id.nav_buttons);
-        if (navButtons != null) {
-            LayoutTransition lt = navButtons.getLayoutTransition();
-            if (lt != null) {
-                if (!lt.getTransitionListeners().contains(mTransitionListener)) {
-                    lt.addTransitionListener(mTransitionListener);
-                }
-            }
-        }
+        return (disableBack ? NAV_STATE_HIDE_BACK : 0)
+                | (disableHome ? NAV_STATE_HIDE_HOME : 0)
+                | (disableRecent ? NAV_STATE_HIDE_RECENT : 0)
+                | (disableHomeHandle ? NAV_STATE_HIDE_HOME_HANDLE : 0)
+                | (disableCursorKeys ? NAV_STATE_HIDE_CURSOR_KEYS : 0)
+                | (disableImeSwitcher ? NAV_STATE_HIDE_IME_SWITCHER : 0);
+    }
 
-        getBackButton().setVisibility(disableBack       ? View.INVISIBLE : View.VISIBLE);
-        getHomeButton().setVisibility(disableHome       ? View.INVISIBLE : View.VISIBLE);
-        getRecentsButton().setVisibility(disableRecent  ? View.INVISIBLE : View.VISIBLE);
-        getHomeHandle().setVisibility(disableHomeHandle ? View.INVISIBLE : View.VISIBLE);
-        getCursorLeftButton().setVisibility(disableCursorKeys  ? View.INVISIBLE : View.VISIBLE);
-        getCursorRightButton().setVisibility(disableCursorKeys ? View.INVISIBLE : View.VISIBLE);
-        notifyActiveTouchRegions();
+    private static void applyNavButtonVisibility(ButtonDispatcher button, int state, int changed,
+            int bit) {
+        if ((changed & bit) != 0) {
+            button.setVisibility((state & bit) != 0 ? View.INVISIBLE : View.VISIBLE);
+        }
     }
 
     /**
@@ -953,16 +1140,78 @@ public class NavigationBarView extends FrameLayout {
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
         super.onLayout(changed, left, top, right, bottom);
 
-        notifyActiveTouchRegions();
+        notifyActiveTouchRegionsIfChanged();
     }
 
     /**
      * Notifies the overview service of the active touch regions.
      */
     public void notifyActiveTouchRegions() {
-        if (mUpdateActiveTouchRegionsCallback != null) {
-            mUpdateActiveTouchRegionsCallback.update();
+        if (mUpdateActiveTouchRegionsCallback == null) {
+            return;
+        }
+        // Always notifies: the screen space regions can move (window move, insets change) while
+        // the local ones stay the same. Keeps the snapshot current for the internal callers.
+        updateTouchRegionSnapshot();
+        mUpdateActiveTouchRegionsCallback.update();
+    }
+
+    /**
+     * Internal variant of {@link #notifyActiveTouchRegions()} for layout and button updates,
+     * skipped when the rotation, button visibility and local button regions are the same as for
+     * the last notification.
+     */
+    private void notifyActiveTouchRegionsIfChanged() {
+        if (mUpdateActiveTouchRegionsCallback == null) {
+            return;
+        }
+        if (!updateTouchRegionSnapshot()) {
+            mTouchRegionNotifiesSkipped++;
+            return;
+        }
+        mUpdateActiveTouchRegionsCallback.update();
+    }
+
+    /**
+     * Compares the current button regions with the ones last notified and stores them.
+     *
+     * @return true if they differ.
+     */
+    private boolean updateTouchRegionSnapshot() {
+        final int signature = mCurrentRotation
+                | (mIsVertical ? 1 << 2 : 0)
+                | ((mNavButtonState & 0x3f) << 3);
+        final Map<View, Rect> regions = getButtonTouchRegionCache();
+        boolean changed = signature != mTouchRegionSignature
+                || regions.size() != mLastTouchRegions.size();
+        if (!changed) {
+            for (Map.Entry<View, Rect> e : regions.entrySet()) {
+                final Rect last = mLastTouchRegions.get(e.getKey());
+                if (last == null || !last.equals(e.getValue())) {
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        if (!changed) {
+            return false;
+        }
+        mTouchRegionSignature = signature;
+        // NearestTouchFrame mutates its map on layout, keep our own copies.
+        for (int i = mLastTouchRegions.size() - 1; i >= 0; i--) {
+            if (!regions.containsKey(mLastTouchRegions.keyAt(i))) {
+                mLastTouchRegions.removeAt(i);
+            }
         }
+        for (Map.Entry<View, Rect> e : regions.entrySet()) {
+            final Rect last = mLastTouchRegions.get(e.getKey());
+            if (last != null) {
+                last.set(e.getValue());
+            } else {
+                mLastTouchRegions.put(e.getKey(), new Rect(e.getValue()));
+            }
+        }
+        return true;
     }
 
     void setUpdateActiveTouchRegionsCallback(UpdateActiveTouchRegionsCallback callback) {
@@ -1003,13 +1252,29 @@ public class NavigationBarView extends FrameLayout {
     }
 
     private void updateCurrentView() {
+        final View target = mIsVertical ? mVertical : mHorizontal;
+        if (target == mCurrentView && target.getVisibility() == View.VISIBLE) {
+            // Same layout still showing, dispatchers are already bound to it.
+            mViewFlipsSkipped++;
+            updateCurrentRotation();
+            return;
+        }
+        Trace.beginSection("NavigationBarView#flipCurrentView");
+        final long start = SystemClock.elapsedRealtimeNanos();
         resetViews();
-        mCurrentView = mIsVertical ? mVertical : mHorizontal;
+        mCurrentView = target;
         mCurrentView.setVisibility(View.VISIBLE);
         mNavigationInflaterView.setVertical(mIsVertical);
         mNavigationInflaterView.updateButtonDispatchersCurrentView();
         updateLayoutTransitionsEnabled();
         updateCurrentRotation();
+        // Buttons may have been rebound, apply the full state on the next icon update.
+        mNavButtonStateView = null;
+        mLastViewFlipNanos = SystemClock.elapsedRealtimeNanos() - start;
+        mViewFlips++;
+        mViewFlipTotalNanos += mLastViewFlipNanos;
+        mViewFlipMaxNanos = Math.max(mViewFlipMaxNanos, mLastViewFlipNanos);
+        Trace.endSection();
     }
 
     private void resetViews() {
@@ -1018,9 +1283,22 @@ public class NavigationBarView extends FrameLayout {
     }
 
     private void updateRecentsIcon() {
-        mDockedIcon.setRotation(mDockedStackExists && mIsVertical ? 90 : 0);
-        getRecentsButton().setImageDrawable(mDockedStackExists ? mDockedIcon : mRecentIcon);
-        mBarTransitions.reapplyDarkIntensity();
+        if (updateRecentsIconInternal()) {
+            mBarTransitions.reapplyDarkIntensity();
+        }
+    }
+
+    /** @return true if the recents drawable changed and needs the dark intensity reapplied. */
+    private boolean updateRecentsIconInternal() {
+        mDockedIcon = getOrientedDrawable(R.drawable.ic_sysbar_docked,
+                mDockedStackExists && mIsVertical ? 90 : 0);
+        final KeyButtonDrawable icon = mDockedStackExists ? mDockedIcon : mRecentIcon;
+        if (mAppliedRecentsIcon != icon) {
+            getRecentsButton().setImageDrawable(icon);
+            mAppliedRecentsIcon = icon;
+            return true;
+        }
+        return false;
     }
 
     public void showPinningEnterExitToast(boolean entering) {
@@ -1041,6 +1319,7 @@ public class NavigationBarView extends FrameLayout {
     }
 
     public void reorient() {
+        Trace.beginSection("NavigationBarView#reorient");
         updateCurrentView();
         ((NavigationBarFrame) getRootView()).setDeadZone(mDeadZone);
 
@@ -1055,6 +1334,8 @@ public class NavigationBarView extends FrameLayout {
         updateNavButtonIcons();
 
         getHomeButton().setVertical(mIsVertical);
+        mLastReorientSignature = computeReorientSignature();
+        Trace.endSection();
     }
 
     @Override
@@ -1078,14 +1359,9 @@ public class NavigationBarView extends FrameLayout {
 
         if (isGesturalMode(mNavBarMode)) {
             // Update the nav bar background to match the height of the visible nav bar
-            int height = mIsVertical
-                    ? getResources().getDimensionPixelSize(
-                            com.android.internal.R.dimen.navigation_bar_height_landscape)
-                    : getResources().getDimensionPixelSize(
-                            com.android.internal.R.dimen.navigation_bar_height);
-            int frameHeight = getResources().getDimensionPixelSize(
-                    com.android.internal.R.dimen.navigation_bar_frame_height);
-            mBarTransitions.setBackgroundFrame(new Rect(0, frameHeight - height, w, h));
+            int height = getNavBarHeight();
+            mBackgroundFrame.set(0, mNavBarFrameHeight - height, w, h);
+            mBarTransitions.setBackgroundFrame(mBackgroundFrame);
         } else {
             mBarTransitions.setBackgroundFrame(null);
         }
@@ -1094,11 +1370,17 @@ public class NavigationBarView extends FrameLayout {
     }
 
     int getNavBarHeight() {
-        return mIsVertical
-                ? getResources().getDimensionPixelSize(
-                com.android.internal.R.dimen.navigation_bar_height_landscape)
-                : getResources().getDimensionPixelSize(
-                        com.android.internal.R.dimen.navigation_bar_height);
+        return mIsVertical ? mNavBarHeightLandscape : mNavBarHeight;
+    }
+
+    /** Reloads the bar dimensions used while measuring, only on configuration changes. */
+    private void updateNavBarDimensions() {
+        mNavBarHeight = getResources().getDimensionPixelSize(
+                com.android.internal.R.dimen.navigation_bar_height);
+        mNavBarHeightLandscape = getResources().getDimensionPixelSize(
+                com.android.internal.R.dimen.navigation_bar_height_landscape);
+        mNavBarFrameHeight = getResources().getDimensionPixelSize(
+                com.android.internal.R.dimen.navigation_bar_frame_height);
     }
 
     private void notifyVerticalChangedListener(boolean newVertical) {
@@ -1113,6 +1395,7 @@ public class NavigationBarView extends FrameLayout {
         mTmpLastConfiguration.updateFrom(mConfiguration);
         final int changes = mConfiguration.updateFrom(newConfig);
         mFloatingRotationButton.onConfigurationChanged(changes);
+        updateNavBarDimensions();
 
         boolean uiCarModeChanged = updateCarMode();
         updateIcons(mTmpLastConfiguration);
@@ -1186,15 +1469,10 @@ public class NavigationBarView extends FrameLayout {
             mRotationButtonController.registerListeners(false /* registerRotationWatcher */);
         }
 
-        // observa o modo do tile
-        mContext.getContentResolver().registerContentObserver(
-                Settings.System.getUriFor(KEY_CUSTOM_ROTATION_MODE),
-                false,
-                mCustomRotationModeObserver
-        );
-
-        // aplica na hora (vai start/stop conforme o modo)
-        applyCustomRotationMode();
+        // observa o modo do tile; o valor atual chega logo em seguida (start/stop conforme o modo)
+        mRotationSettingsHub.addListener(
+                RotationSettingsHub.KEY_CUSTOM_ROTATION_MODE, mContext.getMainExecutor(),
+                mCustomRotationModeListener);
 
             /*
             if (mVideoRotationController != null) {
@@ -1210,7 +1488,9 @@ public class NavigationBarView extends FrameLayout {
         mContext.getContentResolver().unregisterContentObserver(mShowCursorKeysObserver);
 
         // ✅ unregister do seu modo
-        mContext.getContentResolver().unregisterContentObserver(mCustomRotationModeObserver);
+        mRotationSettingsHub.removeListener(
+                RotationSettingsHub.KEY_CUSTOM_ROTATION_MODE, mCustomRotationModeListener);
+        mLastCustomRotationMode = -1;
 
         for (int i = 0; i < mButtonDispatchers.size(); ++i) {
             mButtonDispatchers.valueAt(i).onDestroy();
@@ -1222,6 +1502,8 @@ public class NavigationBarView extends FrameLayout {
         if (mVideoRotationController != null) {
             mVideoRotationController.stop();
         }
+        mLastTouchRegions.clear();
+        mTouchRegionSignature = -1;
     }
 
     void dump(PrintWriter pw) {
@@ -1252,6 +1534,17 @@ public class NavigationBarView extends FrameLayout {
                         getLightTransitionsController().getCurrentDarkIntensity()));
 
         pw.println("    mScreenOn: " + mScreenOn);
+        pw.println("    customRotationMode=" + mLastCustomRotationMode
+                + " relayouts performed=" + mModeRelayoutsPerformed
+                + " avoided=" + mModeRelayoutsAvoided);
+        pw.println("    touchRegionNotifiesSkipped=" + mTouchRegionNotifiesSkipped);
+        pw.println("    viewFlips=" + mViewFlips + " skipped=" + mViewFlipsSkipped
+                + " lastUs=" + (mLastViewFlipNanos < 0 ? -1 : mLastViewFlipNanos / 1000)
+                + " avgUs=" + (mViewFlips > 0 ? mViewFlipTotalNanos / mViewFlips / 1000 : -1)
+                + " maxUs=" + mViewFlipMaxNanos / 1000);
+        if (mVideoRotationController != null) {
+            mVideoRotationController.dump(pw);
+        }
 
 
         dumpButton(pw, "back", getBackButton());
@@ -21,13 +21,16 @@ import static android.hardware.SensorPrivacyManager.Sensors.CAMERA;
 import static com.android.systemui.statusbar.policy.RotationLockControllerImpl.hasSufficientPermission;
 
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.content.ContentResolver;
 
 import android.hardware.SensorPrivacyManager;
 import android.os.Handler;
+import android.os.LocaleList;
 import android.os.Looper;
+import android.os.Process;
 import android.provider.Settings;
 import android.provider.Settings.Secure;
 import android.service.quicksettings.Tile;
@@ -47,14 +50,16 @@ import com.android.systemui.plugins.qs.QSTile.BooleanState;
 import com.android.systemui.plugins.statusbar.StatusBarStateController;
 import com.android.systemui.qs.QSHost;
 import com.android.systemui.qs.QsEventLogger;
-import com.android.systemui.qs.SettingObserver;
 import com.android.systemui.qs.logging.QSLogger;
 import com.android.systemui.qs.tileimpl.QSTileImpl;
+import com.android.systemui.rotation.RotationSettingsHub;
 import com.android.systemui.statusbar.policy.BatteryController;
 import com.android.systemui.statusbar.policy.RotationLockController;
 import com.android.systemui.statusbar.policy.RotationLockController.RotationLockControllerCallback;
 import com.android.systemui.util.settings.SecureSettings;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import javax.inject.Inject;
 
 /** Quick settings tile: Rotation **/
@@ -65,13 +70,72 @@ public class RotationLockTile extends QSTileImpl<BooleanState> implements
 
     private static final String EMPTY_SECONDARY_STRING = "";
 
+    private static final String KEY_CUSTOM_ROTATION_MODE =
+            RotationSettingsHub.KEY_CUSTOM_ROTATION_MODE;
+
+    // Taps within this window are coalesced; only the last mode is written.
+    private static final long APPLY_MODE_DELAY_MS = 300;
+
     private final Icon mIcon = ResourceIcon.get(com.android.internal.R.drawable.ic_qs_auto_rotate);
     private final RotationLockController mController;
     private final SensorPrivacyManager mPrivacyManager;
     private final BatteryController mBatteryController;
-    private final SettingObserver mSetting;
+    private final RotationSettingsHub mSettingsHub;
+    private final SecureSettings mSecureSettings;
     private final boolean mAllowRotationResolver;
 
+    // Mode shown optimistically while its writes are pending, -1 when nothing is pending.
+    // Only touched on the background handler (handleClick/handleUpdateState run there).
+    private int mPendingMode = -1;
+    private final Runnable mApplyPendingMode = this::applyPendingMode;
+
+    // Dirty bit set by any refresh source; cleared when the coalesced refresh runs.
+    private final AtomicBoolean mRefreshPending = new AtomicBoolean();
+    private final Runnable mCoalescedRefresh = () -> {
+        mRefreshPending.set(false);
+        handleRefreshState(null);
+    };
+
+    // Rotation resolver eligibility, cached until its permissions or CAMERA_AUTOROTATE change.
+    // null means "read again"; only touched on the background handler.
+    private Boolean mHasResolverPermission;
+    private Boolean mCameraRotationEnabled;
+    // Uid of the rotation resolver as of the last permission read, INVALID_UID when unknown.
+    private volatile int mResolverUid = Process.INVALID_UID;
+
+    // custom_rotation_mode as last delivered by the hub or written by applyPendingMode(), -1 while
+    // the tile is not subscribed. Only touched on the background handler.
+    private int mCustomMode = -1;
+    private final RotationSettingsHub.Listener mCustomModeListener = (key, value) -> {
+        mCustomMode = value;
+        scheduleRefresh();
+    };
+
+    // CAMERA_AUTOROTATE updates from the shared hub, delivered on the background handler.
+    private final RotationSettingsHub.Listener mCameraAutoRotateListener = (key, value) -> {
+        mCameraRotationEnabled = value == 1;
+        scheduleRefresh();
+    };
+
+    // Runtime permission grants and revocations send no package broadcast. Installing, updating
+    // or removing the resolver changes its permission state as well, so this covers those too.
+    private final PackageManager.OnPermissionsChangedListener mPermissionsChangedListener =
+            uid -> {
+                final int resolverUid = mResolverUid;
+                if (resolverUid != Process.INVALID_UID && uid != resolverUid) return;
+                mHandler.post(() -> {
+                    mHasResolverPermission = null;
+                    scheduleRefresh();
+                });
+            };
+
+    // Per-mode state templates, rebuilt only when the locale changes.
+    private LocaleList mTemplateLocales;
+    private ModeTemplate mAutoTemplate;
+    private ModeTemplate mAutoCameraTemplate;
+    private ModeTemplate mLockedTemplate;
+    private ModeTemplate mContextualTemplate;
+
     @Inject
     public RotationLockTile(
             QSHost host,
@@ -94,19 +158,8 @@ public class RotationLockTile extends QSTileImpl<BooleanState> implements
         mController.observe(this, mCallback);
         mPrivacyManager = privacyManager;
         mBatteryController = batteryController;
-        int currentUser = host.getUserContext().getUserId();
-        mSetting = new SettingObserver(
-                secureSettings,
-                mHandler,
-                Secure.CAMERA_AUTOROTATE,
-                currentUser
-        ) {
-            @Override
-            protected void handleValueChanged(int value, boolean observedChange) {
-                // mHandler is the background handler so calling this is OK
-                handleRefreshState(null);
-            }
-        };
+        mSecureSettings = secureSettings;
+        mSettingsHub = RotationSettingsHub.getInstance(mContext);
         mBatteryController.observe(getLifecycle(), this);
         mAllowRotationResolver = mContext.getResources().getBoolean(
                 com.android.internal.R.bool.config_allowRotationResolver);
@@ -115,11 +168,25 @@ public class RotationLockTile extends QSTileImpl<BooleanState> implements
     @Override
     protected void handleInitialize() {
         mPrivacyManager.addSensorPrivacyListener(CAMERA, mSensorPrivacyChangedListener);
+        if (mAllowRotationResolver) {
+            mContext.getPackageManager().addOnPermissionsChangeListener(
+                    mPermissionsChangedListener);
+        }
     }
 
     @Override
     public void onPowerSaveChanged(boolean isPowerSave) {
-        refreshState();
+        scheduleRefresh();
+    }
+
+    /**
+     * Marks the tile dirty and refreshes it once on the background handler. Requests made before
+     * that refresh runs (click -> settings -> lock state bursts) are folded into it.
+     */
+    private void scheduleRefresh() {
+        if (mRefreshPending.compareAndSet(false, true)) {
+            mHandler.post(mCoalescedRefresh);
+        }
     }
 
     @Override
@@ -134,26 +201,50 @@ public class RotationLockTile extends QSTileImpl<BooleanState> implements
 
     @Override
     protected void handleClick(@Nullable View view) {
-        ContentResolver resolver = mContext.getContentResolver();
-
-        int currentMode = Settings.System.getInt(resolver,"custom_rotation_mode", 0);
+        final int nextMode = (getCurrentMode() + 1) % 3;
+
+        // Show the new mode right away and push the settings/lock writes back, so quickly tapping
+        // through the modes only starts/stops the video controller for the final one.
+        mPendingMode = nextMode;
+        mHandler.removeCallbacks(mApplyPendingMode);
+        mHandler.postDelayed(mApplyPendingMode, APPLY_MODE_DELAY_MS);
+        scheduleRefresh();
+    }
 
-        int nextMode = (currentMode + 1) % 3;
+    private int getCurrentMode() {
+        if (mPendingMode >= 0) {
+            return mPendingMode;
+        }
+        if (mCustomMode >= 0) {
+            return mCustomMode;
+        }
+        return mSettingsHub.getInt(KEY_CUSTOM_ROTATION_MODE);
+    }
 
-        Settings.System.putInt(resolver, "custom_rotation_mode", nextMode);
+    private void applyPendingMode() {
+        final int mode = mPendingMode;
+        if (mode < 0) {
+            return;
+        }
+        mPendingMode = -1;
 
-        if (nextMode == 0){
-            // Modo Auto-Rotação
-            mController.setRotationLocked(false, "RotationLockTile#mode0");
+        // Always written: the hub value is cached asynchronously and may lag behind another
+        // writer. Writing an unchanged value does not notify observers.
+        ContentResolver resolver = mContext.getContentResolver();
+        Settings.System.putIntForUser(resolver, KEY_CUSTOM_ROTATION_MODE, mode,
+                mHost.getUserContext().getUserId());
+        // The hub only catches up once its observer fired; until then this is the current mode.
+        // A later change by another writer still arrives through mCustomModeListener.
+        if (mCustomMode >= 0) {
+            mCustomMode = mode;
+        }
 
-        }else if(nextMode == 1){
-            // Modo Auto-Rotação
-            mController.setRotationLocked(true,  "RotationLockTile#mode1");
-        }else{
-            // Modo Rotação contextual
-            mController.setRotationLocked(true,  "RotationLockTile#mode2");
+        // Modo 0: auto-rotação; modo 1: travado; modo 2: rotação contextual (travado).
+        final boolean locked = mode != 0;
+        if (mController.isRotationLocked() != locked) {
+            mController.setRotationLocked(locked, "RotationLockTile#mode" + mode);
         }
-        refreshState();
+        scheduleRefresh();
     }
 
     @Override
@@ -163,48 +254,23 @@ public class RotationLockTile extends QSTileImpl<BooleanState> implements
 
     @Override
     protected void handleUpdateState(BooleanState state, Object arg) {
-        int currentMode = Settings.System.getInt(mContext.getContentResolver(),"custom_rotation_mode",0);
-        final boolean rotationLocked = mController.isRotationLocked();
-
-        final boolean powerSave = mBatteryController.isPowerSave();
-        final boolean cameraLocked = mPrivacyManager.isSensorPrivacyEnabled(CAMERA);
-        final boolean cameraRotation = mAllowRotationResolver &&
-                !powerSave && !cameraLocked && hasSufficientPermission(mContext)
-                        && mController.isCameraRotationEnabled();
-
+        final int currentMode = getCurrentMode();
+        updateModeTemplates();
 
+        final ModeTemplate template;
         switch (currentMode) {
-            case 0:
-                state.value = true;
-                state.label = mContext.getString(R.string.quick_settings_rotation_unlocked_label);
-                state.icon = mIcon; // ✅
-                state.secondaryLabel = cameraRotation
-                        ? mContext.getString(R.string.rotation_lock_camera_rotation_on)
-                        : EMPTY_SECONDARY_STRING;
-                state.contentDescription = mContext.getString(R.string.accessibility_quick_settings_rotation);
-                state.state = Tile.STATE_ACTIVE;
-                break;
-
             case 1:
-                state.value = false;
-                state.label = "Auto-rotate";
-                state.icon = mIcon; // ✅
-                state.secondaryLabel = EMPTY_SECONDARY_STRING;
-                state.contentDescription = mContext.getString(R.string.accessibility_quick_settings_rotation);
-                state.state = Tile.STATE_ACTIVE;
+                template = mLockedTemplate;
                 break;
-
             case 2:
-                state.value = true;
-                state.label = "Rotação Contextual";
-                state.icon = mIcon; // ✅ (ou mantenha ic_menu_rotate se preferir)
-                state.secondaryLabel = "On";
-                state.contentDescription = "Rotação adaptativa";
-                state.state = Tile.STATE_ACTIVE;
+                template = mContextualTemplate;
+                break;
+            default:
+                // Camera rotation only shows up in auto-rotate mode, skip the queries otherwise.
+                template = isCameraRotationActive() ? mAutoCameraTemplate : mAutoTemplate;
                 break;
         }
-
-
+        template.applyTo(state, mIcon);
 
         /*                
         state.value = !rotationLocked;
@@ -226,22 +292,128 @@ public class RotationLockTile extends QSTileImpl<BooleanState> implements
         state.state = state.value ? Tile.STATE_ACTIVE : Tile.STATE_INACTIVE;
     }
 
+    private boolean isCameraRotationActive() {
+        return mAllowRotationResolver
+                && !mBatteryController.isPowerSave()
+                && !mPrivacyManager.isSensorPrivacyEnabled(CAMERA)
+                && hasResolverPermission()
+                && isCameraRotationEnabled();
+    }
+
+    private boolean hasResolverPermission() {
+        if (mHasResolverPermission == null) {
+            mHasResolverPermission = hasSufficientPermission(mContext);
+            mResolverUid = getResolverUid();
+        }
+        return mHasResolverPermission;
+    }
+
+    private int getResolverUid() {
+        final PackageManager pm = mContext.getPackageManager();
+        final String resolverPackage = pm.getRotationResolverPackageName();
+        if (resolverPackage == null) {
+            return Process.INVALID_UID;
+        }
+        try {
+            return pm.getPackageUid(resolverPackage, 0 /* flags */);
+        } catch (PackageManager.NameNotFoundException e) {
+            return Process.INVALID_UID;
+        }
+    }
+
+    private boolean isCameraRotationEnabled() {
+        if (mCameraRotationEnabled == null) {
+            mCameraRotationEnabled = mSecureSettings.getIntForUser(Secure.CAMERA_AUTOROTATE, 0,
+                    mHost.getUserContext().getUserId()) == 1;
+        }
+        return mCameraRotationEnabled;
+    }
+
+    private void updateModeTemplates() {
+        final LocaleList locales = mContext.getResources().getConfiguration().getLocales();
+        if (mAutoTemplate != null && locales.equals(mTemplateLocales)) {
+            return;
+        }
+        mTemplateLocales = locales;
+        final CharSequence a11y =
+                mContext.getString(R.string.accessibility_quick_settings_rotation);
+        final CharSequence unlocked =
+                mContext.getString(R.string.quick_settings_rotation_unlocked_label);
+        mAutoTemplate = new ModeTemplate(true, unlocked, EMPTY_SECONDARY_STRING, a11y);
+        mAutoCameraTemplate = new ModeTemplate(true, unlocked,
+                mContext.getString(R.string.rotation_lock_camera_rotation_on), a11y);
+        mLockedTemplate = new ModeTemplate(false, "Auto-rotate", EMPTY_SECONDARY_STRING, a11y);
+        mContextualTemplate = new ModeTemplate(true, "Rotação Contextual", "On",
+                "Rotação adaptativa");
+    }
+
+    /** Immutable tile state for one rotation mode. */
+    private static final class ModeTemplate {
+        final boolean value;
+        final CharSequence label;
+        final CharSequence secondaryLabel;
+        final CharSequence contentDescription;
+
+        ModeTemplate(boolean value, CharSequence label, CharSequence secondaryLabel,
+                CharSequence contentDescription) {
+            this.value = value;
+            this.label = label;
+            this.secondaryLabel = secondaryLabel;
+            this.contentDescription = contentDescription;
+        }
+
+        /** Change detection is left to {@code State.copyTo()} in QSTileImpl. */
+        void applyTo(BooleanState state, Icon icon) {
+            state.value = value;
+            state.icon = icon;
+            state.label = label;
+            state.secondaryLabel = secondaryLabel;
+            state.contentDescription = contentDescription;
+        }
+    }
+
     @Override
     protected void handleDestroy() {
+        // Don't lose a tap that is still waiting to be applied.
+        mHandler.removeCallbacks(mApplyPendingMode);
+        applyPendingMode();
         super.handleDestroy();
-        mSetting.setListening(false);
+        mSettingsHub.removeListener(KEY_CUSTOM_ROTATION_MODE, mCustomModeListener);
+        mSettingsHub.removeListener(RotationSettingsHub.KEY_CAMERA_AUTOROTATE,
+                mCameraAutoRotateListener);
         mPrivacyManager.removeSensorPrivacyListener(CAMERA, mSensorPrivacyChangedListener);
+        if (mAllowRotationResolver) {
+            mContext.getPackageManager().removeOnPermissionsChangeListener(
+                    mPermissionsChangedListener);
+        }
     }
 
     @Override
     public void handleSetListening(boolean listening) {
         super.handleSetListening(listening);
-        mSetting.setListening(listening);
+        if (listening) {
+            // The hub delivers the current values once it has read them.
+            mSettingsHub.addListener(KEY_CUSTOM_ROTATION_MODE, mHandler::post,
+                    mCustomModeListener);
+            mSettingsHub.addListener(RotationSettingsHub.KEY_CAMERA_AUTOROTATE, mHandler::post,
+                    mCameraAutoRotateListener);
+        } else {
+            mSettingsHub.removeListener(KEY_CUSTOM_ROTATION_MODE, mCustomModeListener);
+            mSettingsHub.removeListener(RotationSettingsHub.KEY_CAMERA_AUTOROTATE,
+                    mCameraAutoRotateListener);
+            // The settings are not observed while we are not listening.
+            mCustomMode = -1;
+            mCameraRotationEnabled = null;
+        }
     }
 
     @Override
     protected void handleUserSwitch(int newUserId) {
         //mSetting.setUserId(newUserId);
+        mHasResolverPermission = null;
+        mResolverUid = Process.INVALID_UID;
+        // The hub moves its observers to the new user and redelivers changed values itself.
+        mCameraRotationEnabled = null;
         handleRefreshState(null);
     }
 
@@ -274,11 +446,11 @@ public class RotationLockTile extends QSTileImpl<BooleanState> implements
     private final RotationLockControllerCallback mCallback = new RotationLockControllerCallback() {
         @Override
         public void onRotationLockStateChanged(boolean rotationLocked, boolean affordanceVisible) {
-            refreshState(rotationLocked);
+            scheduleRefresh();
         }
     };
 
     private final SensorPrivacyManager.OnSensorPrivacyChangedListener
             mSensorPrivacyChangedListener =
-            (sensor, enabled) -> refreshState();
+            (sensor, enabled) -> scheduleRefresh();
 }
\ No newline at end of file
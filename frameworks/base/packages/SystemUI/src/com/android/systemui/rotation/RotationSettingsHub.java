@@ -0,0 +1,255 @@
+package com.android.systemui.rotation;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.util.ArrayMap;
+
+import com.android.systemui.Dependency;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Single observer for the rotation related settings used across SystemUI (nav bar, status bar,
+ * rotation tile, video rotation controller).
+ *
+ * Each key is registered with the ContentResolver once, when it gets its first subscriber, and
+ * unregistered with the last one. Registration, reads and dispatch all happen on the background
+ * handler; values are cached and dispatched to every subscriber on the executor it chose.
+ * Settings are those of the current user, observers move along on user switches.
+ *
+ * One instance per process, see {@link #getInstance(Context)}. It only relies on
+ * {@link Dependency#BG_LOOPER}, so the views and the tile reach it without extra wiring.
+ */
+public final class RotationSettingsHub {
+    /** Settings.System: 0 auto-rotate, 1 locked, 2 contextual (video) rotation. */
+    public static final String KEY_CUSTOM_ROTATION_MODE = "custom_rotation_mode";
+    /** Settings.System: 1 when auto-rotate is on, 0 when rotation is locked. */
+    public static final String KEY_ACCELEROMETER_ROTATION = Settings.System.ACCELEROMETER_ROTATION;
+    /** Settings.Secure: 1 when camera based rotation is on. */
+    public static final String KEY_CAMERA_AUTOROTATE = Settings.Secure.CAMERA_AUTOROTATE;
+
+    /** Receives typed updates for one key. */
+    public interface Listener {
+        void onSettingChanged(String key, int value);
+    }
+
+    private static RotationSettingsHub sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mBgHandler;
+    private final Object mLock = new Object();
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+    // User the observers are registered for; only touched on the background handler.
+    private int mObservedUserId;
+
+    private final BroadcastReceiver mUserSwitchedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onUserSwitched(intent.getIntExtra(Intent.EXTRA_USER_HANDLE,
+                    ActivityManager.getCurrentUser()));
+        }
+    };
+
+    /** @return the process wide hub, created on first use. */
+    public static synchronized RotationSettingsHub getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new RotationSettingsHub(context.getApplicationContext(),
+                    new Handler(Dependency.get(Dependency.BG_LOOPER)));
+        }
+        return sInstance;
+    }
+
+    private RotationSettingsHub(Context context, Handler bgHandler) {
+        mResolver = context.getContentResolver();
+        mBgHandler = bgHandler;
+        mObservedUserId = ActivityManager.getCurrentUser();
+        addEntry(KEY_CUSTOM_ROTATION_MODE, false /* secure */, 0);
+        addEntry(KEY_ACCELEROMETER_ROTATION, false /* secure */, 0);
+        addEntry(KEY_CAMERA_AUTOROTATE, true /* secure */, 0);
+        mBgHandler.post(() -> {
+            context.registerReceiverAsUser(mUserSwitchedReceiver, UserHandle.ALL,
+                    new IntentFilter(Intent.ACTION_USER_SWITCHED), null /* permission */,
+                    mBgHandler);
+            // A switch may have happened before the receiver was in place.
+            onUserSwitched(ActivityManager.getCurrentUser());
+        });
+    }
+
+    /**
+     * Subscribes to {@code key}. The listener is called on {@code executor} with the current value
+     * once it has been read on the background handler, and then on every change.
+     */
+    public void addListener(String key, Executor executor, Listener listener) {
+        final Entry entry = getEntry(key);
+        final Subscription subscription = new Subscription(executor, listener);
+        synchronized (mLock) {
+            for (int i = 0; i < entry.subscribers.size(); i++) {
+                if (entry.subscribers.get(i).listener == listener) return;
+            }
+            entry.subscribers.add(subscription);
+        }
+        mBgHandler.post(() -> {
+            // Removed again before we got here.
+            if (!subscription.active) return;
+            if (entry.observer == null) {
+                register(entry);
+            }
+            final int value;
+            synchronized (mLock) {
+                value = entry.value;
+            }
+            dispatch(entry, subscription, value);
+        });
+    }
+
+    /** No callback is delivered to {@code listener} once this returns. */
+    public void removeListener(String key, Listener listener) {
+        final Entry entry = getEntry(key);
+        synchronized (mLock) {
+            for (int i = entry.subscribers.size() - 1; i >= 0; i--) {
+                final Subscription s = entry.subscribers.get(i);
+                if (s.listener == listener) {
+                    s.active = false;
+                    entry.subscribers.remove(i);
+                }
+            }
+            if (!entry.subscribers.isEmpty() || entry.observer == null) return;
+        }
+        mBgHandler.post(() -> {
+            final ContentObserver observer;
+            synchronized (mLock) {
+                if (!entry.subscribers.isEmpty() || entry.observer == null) return;
+                observer = entry.observer;
+                entry.observer = null;
+            }
+            mResolver.unregisterContentObserver(observer);
+        });
+    }
+
+    /**
+     * @return the cached value while {@code key} has subscribers, otherwise a direct read for the
+     *         current user.
+     */
+    public int getInt(String key) {
+        final Entry entry = getEntry(key);
+        synchronized (mLock) {
+            if (entry.observer != null) {
+                return entry.value;
+            }
+        }
+        return read(entry, ActivityManager.getCurrentUser());
+    }
+
+    /**
+     * Runs on the background handler, which is the only writer of {@link Entry#observer}; the
+     * binder calls happen outside {@link #mLock} so main thread getInt() calls never wait on them.
+     */
+    private void register(Entry entry) {
+        final int value = read(entry, mObservedUserId);
+        final ContentObserver observer = new ContentObserver(mBgHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onEntryChanged(entry);
+            }
+        };
+        mResolver.registerContentObserver(entry.uri, false, observer, mObservedUserId);
+        synchronized (mLock) {
+            entry.value = value;
+            entry.observer = observer;
+        }
+    }
+
+    /** Runs on the background handler. */
+    private void onUserSwitched(int userId) {
+        if (userId == mObservedUserId) return;
+        mObservedUserId = userId;
+        for (int i = 0; i < mEntries.size(); i++) {
+            final Entry entry = mEntries.valueAt(i);
+            if (entry.observer == null) continue;
+            mResolver.unregisterContentObserver(entry.observer);
+            mResolver.registerContentObserver(entry.uri, false, entry.observer, userId);
+            onEntryChanged(entry);
+        }
+    }
+
+    /** Runs on the background handler. */
+    private void onEntryChanged(Entry entry) {
+        final int value = read(entry, mObservedUserId);
+        final Subscription[] subscribers;
+        synchronized (mLock) {
+            if (entry.observer == null || value == entry.value) return;
+            entry.value = value;
+            subscribers = entry.subscribers.toArray(new Subscription[0]);
+        }
+        for (Subscription s : subscribers) {
+            dispatch(entry, s, value);
+        }
+    }
+
+    private static void dispatch(Entry entry, Subscription s, int value) {
+        s.executor.execute(() -> {
+            // Checked on the subscriber's executor, where removeListener() is called from too.
+            if (s.active) {
+                s.listener.onSettingChanged(entry.key, value);
+            }
+        });
+    }
+
+    private int read(Entry entry, int userId) {
+        if (entry.secure) {
+            return Settings.Secure.getIntForUser(mResolver, entry.key, entry.def, userId);
+        }
+        return Settings.System.getIntForUser(mResolver, entry.key, entry.def, userId);
+    }
+
+    private void addEntry(String key, boolean secure, int def) {
+        final Uri uri = secure ? Settings.Secure.getUriFor(key) : Settings.System.getUriFor(key);
+        mEntries.put(key, new Entry(key, secure, def, uri));
+    }
+
+    private Entry getEntry(String key) {
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            throw new IllegalArgumentException("Unsupported rotation setting: " + key);
+        }
+        return entry;
+    }
+
+    private static final class Entry {
+        final String key;
+        final boolean secure;
+        final int def;
+        final Uri uri;
+        final ArrayList<Subscription> subscribers = new ArrayList<>();
+        ContentObserver observer;
+        int value;
+
+        Entry(String key, boolean secure, int def, Uri uri) {
+            this.key = key;
+            this.secure = secure;
+            this.def = def;
+            this.uri = uri;
+        }
+    }
+
+    private static final class Subscription {
+        final Executor executor;
+        final Listener listener;
+        volatile boolean active = true;
+
+        Subscription(Executor executor, Listener listener) {
+            this.executor = executor;
+            this.listener = listener;
+        }
+    }
+}
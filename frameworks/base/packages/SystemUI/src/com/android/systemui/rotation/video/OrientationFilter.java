@@ -0,0 +1,142 @@
+package com.android.systemui.rotation.video;
+
+/**
+ * Accelerometer filter for the fallback orientation path of {@link VideoRotationController}.
+ *
+ * Each sample goes through:
+ * - a magnitude check that drops samples taken while the device is being shaken,
+ * - a first order low-pass filter,
+ * - tilt rejection, so a phone lying (almost) flat never proposes a rotation,
+ * - a settle check: a rotation is only reported once it held for {@link #SETTLE_MS}.
+ *
+ * All state is preallocated Q10 fixed point and {@link #feed} does not allocate. The class has
+ * no Android dependencies so it can be replayed against recorded sample traces on the host.
+ */
+final class OrientationFilter {
+    static final int NO_ROTATION = -1;
+
+    // Surface.ROTATION_* values, duplicated to stay free of framework classes.
+    static final int ROTATION_0 = 0;
+    static final int ROTATION_90 = 1;
+    static final int ROTATION_180 = 2;
+    static final int ROTATION_270 = 3;
+
+    // Q10: 1.0 == 1 << 10.
+    private static final int Q = 10;
+    private static final int ONE = 1 << Q;
+
+    // Weight of the new sample in the low-pass filter (0.5). Samples come at SENSOR_DELAY_NORMAL
+    // (~200 ms), so this settles on a new orientation within two to three samples.
+    private static final int ALPHA = ONE / 2;
+
+    // Standard gravity, Q10 m/s^2, and the accepted |a|^2 band (0.7g..1.3g).
+    private static final long GRAVITY = 10042;
+    private static final long MAG_SQ_MIN = GRAVITY * GRAVITY * 49 / 100;
+    private static final long MAG_SQ_MAX = GRAVITY * GRAVITY * 169 / 100;
+
+    // Reject tilt above 70 degrees: (x^2 + y^2) / |a|^2 must be >= 1 - sin^2(70) (Q10).
+    private static final long MIN_XY_RATIO = 120;
+
+    // Sector half width of 30 degrees around each axis: tan(30) in Q10.
+    private static final long TAN_30 = 591;
+
+    // Below one SENSOR_DELAY_NORMAL period: a rotation settles on the second sample seeing it.
+    static final long SETTLE_MS = 150;
+
+    private boolean mPrimed;
+    private int mX;
+    private int mY;
+    private int mZ;
+
+    private int mCandidate = NO_ROTATION;
+    private long mCandidateSinceMs;
+    private int mSettled = NO_ROTATION;
+
+    /** Feeds a raw sample in m/s^2. */
+    int feed(long timeMs, float x, float y, float z) {
+        return feed(timeMs, (int) (x * ONE), (int) (y * ONE), (int) (z * ONE));
+    }
+
+    /**
+     * Feeds a raw sample in Q10 m/s^2 (device axes, as reported by the accelerometer).
+     *
+     * @return the settled rotation, or {@link #NO_ROTATION} if the sample was rejected or the
+     *         rotation has not settled yet.
+     */
+    int feed(long timeMs, int x, int y, int z) {
+        final long rawMagSq = (long) x * x + (long) y * y + (long) z * z;
+        if (rawMagSq < MAG_SQ_MIN || rawMagSq > MAG_SQ_MAX) {
+            // Shaking or free fall: whatever we were settling on is not trustworthy.
+            mCandidate = NO_ROTATION;
+            return NO_ROTATION;
+        }
+
+        if (!mPrimed) {
+            mX = x;
+            mY = y;
+            mZ = z;
+            mPrimed = true;
+        } else {
+            mX += (int) (((long) (x - mX) * ALPHA) >> Q);
+            mY += (int) (((long) (y - mY) * ALPHA) >> Q);
+            mZ += (int) (((long) (z - mZ) * ALPHA) >> Q);
+        }
+
+        final long xySq = (long) mX * mX + (long) mY * mY;
+        final long magSq = xySq + (long) mZ * mZ;
+        if (xySq * ONE < magSq * MIN_XY_RATIO) {
+            // Too flat to tell which edge is down.
+            mCandidate = NO_ROTATION;
+            return NO_ROTATION;
+        }
+
+        final int rotation = sectorRotation(mX, mY);
+        if (rotation == NO_ROTATION) {
+            // Between sectors: keep settling on the previous candidate (hysteresis).
+            return settledOrNone(timeMs);
+        }
+        if (rotation != mCandidate) {
+            mCandidate = rotation;
+            mCandidateSinceMs = timeMs;
+            return NO_ROTATION;
+        }
+        return settledOrNone(timeMs);
+    }
+
+    /** @return the last rotation reported by {@link #feed}, or {@link #NO_ROTATION}. */
+    int getSettledRotation() {
+        return mSettled;
+    }
+
+    void reset() {
+        mPrimed = false;
+        mX = mY = mZ = 0;
+        mCandidate = NO_ROTATION;
+        mCandidateSinceMs = 0;
+        mSettled = NO_ROTATION;
+    }
+
+    private int settledOrNone(long timeMs) {
+        if (mCandidate == NO_ROTATION || timeMs - mCandidateSinceMs < SETTLE_MS) {
+            return NO_ROTATION;
+        }
+        mSettled = mCandidate;
+        return mSettled;
+    }
+
+    /**
+     * Maps the gravity direction in the screen plane to a rotation. The landscape mapping matches
+     * what the controller did with OrientationEventListener degrees (90 -> ROTATION_270).
+     */
+    private static int sectorRotation(int x, int y) {
+        final long ax = Math.abs((long) x);
+        final long ay = Math.abs((long) y);
+        if (ax * ONE <= TAN_30 * ay) {
+            return y > 0 ? ROTATION_0 : ROTATION_180;
+        }
+        if (ay * ONE <= TAN_30 * ax) {
+            return x > 0 ? ROTATION_90 : ROTATION_270;
+        }
+        return NO_ROTATION;
+    }
+}
@@ -0,0 +1,126 @@
+package com.android.systemui.rotation.video;
+
+import android.media.AudioAttributes;
+import android.media.AudioPlaybackConfiguration;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseBooleanArray;
+import android.util.SparseLongArray;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Tracking state of {@link VideoRotationController} that is kept across stop()/start():
+ * - package -> uid lookups, so re-enabling contextual mode skips the PackageManager queries,
+ * - last time video was seen per uid, reconciled with the active playback list on start().
+ *
+ * Both tables are bounded (64 packages, 32 uids). Main thread only, except
+ * {@link #getUid}/{@link #putUid} which are also used from the background executor.
+ */
+final class VideoRotationCache {
+    private static final String TAG = "VideoRotationCtl";
+
+    static final int MAX_PACKAGES = 64;
+    static final int MAX_UIDS = 32;
+
+    // LruCache is synchronized, so background uid resolution is safe.
+    private final LruCache<String, Integer> mUids = new LruCache<>(MAX_PACKAGES);
+
+    // UID -> last time we saw MOVIE playback (active)
+    private final SparseLongArray mLastVideoSeenUptime = new SparseLongArray();
+
+    // Uids with active video in the last playback list; reused by onPlaybackConfigs().
+    private final SparseBooleanArray mActiveVideoUids = new SparseBooleanArray();
+
+    Integer getUid(String pkg) {
+        return mUids.get(pkg);
+    }
+
+    void putUid(String pkg, int uid) {
+        mUids.put(pkg, uid);
+    }
+
+    /**
+     * Applies a full playback configuration list: marks uids with active video and drops uids that
+     * no longer have any, which kills the grace time when a video is closed inside the app.
+     */
+    void onPlaybackConfigs(List<AudioPlaybackConfiguration> configs, long now) {
+        mActiveVideoUids.clear();
+
+        for (AudioPlaybackConfiguration c : configs) {
+            final AudioAttributes aa = c.getAudioAttributes();
+            final int uid = c.getClientUid();
+
+            // LOG COMPLETO
+            Log.d(TAG, "APC uid=" + uid
+                    + " active=" + c.isActive()
+                    + " ptype=" + c.getPlayerType()
+                    + " usage=" + (aa != null ? aa.getUsage() : -1)
+                    + " content=" + (aa != null ? aa.getContentType() : -1)
+                    + " flags=0x" + Integer.toHexString(aa != null ? aa.getFlags() : 0)
+                    + " piid=" + c.getPlayerInterfaceId());
+
+            if (!c.isActive()) continue;
+            if (aa == null) continue;
+            if (uid <= 0) continue;
+
+            // Só mídia
+            if (aa.getUsage() != AudioAttributes.USAGE_MEDIA) continue;
+
+            // Sinais fortes de vídeo:
+            final boolean isMovie = (aa.getContentType() == AudioAttributes.CONTENT_TYPE_MOVIE);
+            final boolean hasAvSync = ((aa.getFlags() & AudioAttributes.FLAG_HW_AV_SYNC) != 0);
+
+            // >>> IMPORTANTE: NÃO trate "UNKNOWN" como vídeo sem AV_SYNC
+            if (!isMovie && !hasAvSync) continue;
+
+            mActiveVideoUids.put(uid, true);
+            // agora sim marca "vídeo recente"
+            markVideoSeen(uid, now);
+            Log.d(TAG, "VIDEO playback detected for uid=" + uid
+                    + " movie=" + isMovie + " av_sync=" + hasAvSync);
+        }
+
+        for (int i = mLastVideoSeenUptime.size() - 1; i >= 0; i--) {
+            final int uid = mLastVideoSeenUptime.keyAt(i);
+            if (!mActiveVideoUids.get(uid, false)) {
+                mLastVideoSeenUptime.removeAt(i);
+                Log.d(TAG, "VIDEO cleared for uid=" + uid);
+            }
+        }
+    }
+
+    void markVideoSeen(int uid, long now) {
+        mLastVideoSeenUptime.put(uid, now);
+        if (mLastVideoSeenUptime.size() > MAX_UIDS) {
+            removeOldestSeen();
+        }
+    }
+
+    boolean isVideoActiveOrRecent(int uid, long now, long graceMs) {
+        final long last = mLastVideoSeenUptime.get(uid, 0L);
+        return (last > 0L) && (now - last <= graceMs);
+    }
+
+    void dump(PrintWriter pw, long now) {
+        pw.println("      cache: packages=" + mUids.size() + "/" + MAX_PACKAGES
+                + " hits=" + mUids.hitCount() + " misses=" + mUids.missCount()
+                + " trackedUids=" + mLastVideoSeenUptime.size());
+        for (int i = 0; i < mLastVideoSeenUptime.size(); i++) {
+            final int uid = mLastVideoSeenUptime.keyAt(i);
+            pw.println("        uid=" + uid + " seen=" + (now - mLastVideoSeenUptime.valueAt(i))
+                    + "ms ago active=" + mActiveVideoUids.get(uid, false));
+        }
+    }
+
+    private void removeOldestSeen() {
+        int oldest = 0;
+        for (int i = 1; i < mLastVideoSeenUptime.size(); i++) {
+            if (mLastVideoSeenUptime.valueAt(i) < mLastVideoSeenUptime.valueAt(oldest)) {
+                oldest = i;
+            }
+        }
+        mLastVideoSeenUptime.removeAt(oldest);
+    }
+}
@@ -1,21 +1,33 @@
 package com.android.systemui.rotation.video;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.hardware.display.DisplayManager;
 import android.media.AudioAttributes;
 import android.media.AudioManager;
 import android.media.AudioPlaybackConfiguration;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.SystemClock;
-import android.util.ArrayMap;
+import android.os.SystemProperties;
+import android.os.Trace;
 import android.util.Log;
-import android.view.OrientationEventListener;
+import android.util.SparseIntArray;
 import android.view.Surface;
 import android.view.Display;
 
 import com.android.internal.view.RotationPolicy;
+import com.android.systemui.Dependency;
+import com.android.systemui.keyguard.ScreenLifecycle;
+import com.android.systemui.rotation.RotationSettingsHub;
+import com.android.systemui.statusbar.CommandQueue;
+import com.android.systemui.statusbar.policy.KeyguardStateController;
 import com.android.systemui.shared.system.ActivityManagerWrapper;
 import com.android.systemui.shared.system.TaskStackChangeListener;
 import com.android.systemui.shared.system.TaskStackChangeListeners;
@@ -23,7 +35,10 @@ import com.android.systemui.shared.system.TaskStackChangeListeners;
 import android.app.ActivityManager;
 import android.content.ComponentName;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 import android.provider.Settings;
 
 /**
@@ -43,23 +58,98 @@ public final class VideoRotationController {
     // Debounce orientation changes.
     private static final long ORIENTATION_DEBOUNCE_MS = 120;
 
+    // When true (default) orientation comes from WindowManager's rotation proposals; the
+    // standalone accelerometer path is only used as a fallback.
+    private static final String PROP_USE_ROTATION_PROPOSALS =
+            "persist.sysui.video_rotation.use_proposals";
+
+    // Armed-state snapshot, so a SystemUI restart while armed can restore or resume.
+    private static final String STATE_PREFS = "video_rotation_state";
+    private static final String KEY_ARMED_TASK = "armed_task";
+    private static final String KEY_RESTORE_ROTATION = "restore_rotation";
+    private static final String KEY_VIDEO_UID = "video_uid";
+
+    // Async trace section covering request -> display rotated, for perfetto/systrace.
+    private static final String TRACE_ROTATION_TRANSITION = "VideoRotation#transition";
+
+    /**
+     * Receives controller state changes. All calls happen on the main thread.
+     */
+    public interface Callback {
+        /**
+         * Called when the controller starts ({@code armed == true}) or stops driving the display
+         * rotation for a task.
+         */
+        default void onArmedChanged(boolean armed) {}
+
+        /**
+         * Called once the listener registrations started by {@link #start()} have completed
+         * ({@code ready == true}), and again with {@code false} when {@link #stop()} is called.
+         */
+        default void onReadyChanged(boolean ready) {}
+
+        /**
+         * Called right before the controller asks WindowManager to rotate the display to
+         * {@code targetRotation}, so bars can prepare layout for it ahead of the config change.
+         */
+        default void onRotationImminent(int targetRotation) {}
+    }
+
     private final Context mContext;
     private final Handler mMainHandler;
+    private final Executor mBgExecutor;
     private final AudioManager mAudioManager;
     private final PackageManager mPm;
+    private final DisplayManager mDisplayManager;
+    private final ArrayList<Callback> mCallbacks = new ArrayList<>();
+    private SharedPreferences mStatePrefs;
+    private final RotationSettingsHub mSettingsHub;
+
+    // Retained across stop()/start(): uid lookups and last-seen video times.
+    private final VideoRotationCache mCache = new VideoRotationCache();
+    // Wakeup/sensor/rotation counters for the current boot, see dump().
+    private final VideoRotationStats mStats = new VideoRotationStats();
+
+
+    // Dormant while the screen is off or the keyguard covers the app, see updateDormant().
+    private boolean mDormant;
+    private boolean mTasksStale;
+    private ScreenLifecycle mScreenLifecycle;
+    private final ScreenLifecycle.Observer mScreenObserver = new ScreenLifecycle.Observer() {
+        @Override
+        public void onScreenTurnedOn() {
+            updateDormant();
+        }
 
-    // Cache package -> uid lookups
-    private final ArrayMap<String, Integer> mUidCache = new ArrayMap<>();
-
-    // UID -> last time we saw MOVIE playback (active)
-    private final android.util.SparseLongArray mLastMovieSeenUptime = new android.util.SparseLongArray();
+        @Override
+        public void onScreenTurnedOff() {
+            updateDormant();
+        }
+    };
+    private KeyguardStateController mKeyguardStateController;
+    private final KeyguardStateController.Callback mKeyguardCallback =
+            new KeyguardStateController.Callback() {
+                @Override
+                public void onKeyguardShowingChanged() {
+                    updateDormant();
+                }
+            };
 
+    // mStarted: start() requested. mReady: registrations done, initial state loaded.
     private boolean mStarted;
+    private boolean mReady;
+    // Bumped on every start/stop so a stale start completion is dropped.
+    private int mGeneration;
 
-    // Current focused task/app
+    // Visible tasks (split-screen/freeform can show several), most recent first.
+    private static final int MAX_VISIBLE_TASKS = 8;
+    private final SparseIntArray mVisibleTaskUids = new SparseIntArray(MAX_VISIBLE_TASKS);
+    private final int[] mVisibleTaskOrder = new int[MAX_VISIBLE_TASKS];
+    private int mVisibleTaskCount;
+
+    // Target task/app: the visible task hosting video, or the focused one if none does.
     private int mTopTaskId = INVALID_TASK_ID;
     private int mTopUid = -1;
-    private String mTopPackage = null;
 
     // "Armed" means we are allowed to follow sensor and apply lock-at-angle.
     private boolean mArmed;
@@ -69,76 +159,69 @@ public final class VideoRotationController {
     private int mArmedTaskId = INVALID_TASK_ID;
 
     // Orientation tracking
-    private OrientationEventListener mOrientationListener;
+    private SensorManager mSensorManager;
+    private boolean mSensorListening;
+    private final OrientationFilter mOrientationFilter = new OrientationFilter();
+    private CommandQueue mCommandQueue;
+    private boolean mUsingRotationProposals;
     private int mDesiredRotation = Surface.ROTATION_0;
     private int mLastAppliedRotation = -1;
     private long mLastOrientationDecisionUptime;
 
+    // Transition timing: rotation we asked for and when, -1 when nothing is in flight.
+    private int mPendingTransitionRotation = -1;
+    private long mPendingTransitionStartUptime;
+    private int mTransitionCookie;
+    // Completed transitions (display reached the requested rotation), reported by dump().
+    private int mTransitionCount;
+    private long mTransitionTotalMs;
+    private long mLastTransitionMs = -1;
+
+    private final DisplayManager.DisplayListener mDisplayListener =
+            new DisplayManager.DisplayListener() {
+                @Override
+                public void onDisplayAdded(int displayId) {}
+
+                @Override
+                public void onDisplayRemoved(int displayId) {}
+
+                @Override
+                public void onDisplayChanged(int displayId) {
+                    if (displayId != Display.DEFAULT_DISPLAY) return;
+                    if (mPendingTransitionRotation == getDisplayRotation()) {
+                        endTransitionTrace(true /* completed */);
+                    }
+                }
+            };
+
     private final AudioManager.AudioPlaybackCallback mPlaybackCallback =
             new AudioManager.AudioPlaybackCallback() {
                 @Override
                 public void onPlaybackConfigChanged(List<AudioPlaybackConfiguration> configs) {
-                    final long now = SystemClock.uptimeMillis();
-
-                    // Quais UIDs têm vídeo ativo AGORA
-                    final android.util.SparseBooleanArray activeVideoUids = new android.util.SparseBooleanArray();
-
-                    for (AudioPlaybackConfiguration c : configs) {
-                        final AudioAttributes aa = c.getAudioAttributes();
-                        final int uid = c.getClientUid();
-
-                        // LOG COMPLETO
-                        Log.d(TAG, "APC uid=" + uid
-                                + " active=" + c.isActive()
-                                + " ptype=" + c.getPlayerType()
-                                + " usage=" + (aa != null ? aa.getUsage() : -1)
-                                + " content=" + (aa != null ? aa.getContentType() : -1)
-                                + " flags=0x" + Integer.toHexString(aa != null ? aa.getFlags() : 0)
-                                + " piid=" + c.getPlayerInterfaceId());
-
-                        if (!c.isActive()) continue;
-                        if (aa == null) continue;
-                        if (uid <= 0) continue;
-
-                        // Só mídia
-                        if (aa.getUsage() != AudioAttributes.USAGE_MEDIA) continue;
-
-                        // Sinais fortes de vídeo:
-                        final boolean isMovie = (aa.getContentType() == AudioAttributes.CONTENT_TYPE_MOVIE);
-                        final boolean hasAvSync = ( (aa.getFlags() & AudioAttributes.FLAG_HW_AV_SYNC) != 0 );
-
-                        // >>> IMPORTANTE: NÃO trate "UNKNOWN" como vídeo sem AV_SYNC
-                        if (!isMovie && !hasAvSync) continue;
-
-                        activeVideoUids.put(uid, true);
-                        // agora sim marca "vídeo recente"
-                        mLastMovieSeenUptime.put(uid, now);
-                        Log.d(TAG, "VIDEO playback detected for uid=" + uid
-                                + " movie=" + isMovie + " av_sync=" + hasAvSync);
-                    }
-
-                    // >>> AQUI É A CHAVE: se não tem vídeo ATIVO, remove o UID.
-                    // Isso mata o "grace time" ao fechar o vídeo sem sair do app.
-                    for (int i = mLastMovieSeenUptime.size() - 1; i >= 0; i--) {
-                        final int uid = mLastMovieSeenUptime.keyAt(i);
-                        if (!activeVideoUids.get(uid, false)) {
-                            mLastMovieSeenUptime.delete(uid);
-                            Log.d(TAG, "VIDEO cleared for uid=" + uid);
-                        }
-                    }
+                    mStats.onWakeup(VideoRotationStats.WAKEUP_AUDIO);
+                    mCache.onPlaybackConfigs(configs, SystemClock.uptimeMillis());
                     // Re-evaluate quickly on playback changes.
                     mMainHandler.post(VideoRotationController.this::evaluateState);
                 }
             };
 
     private static final long POLL_MS = 2000;
+    // Counters are also persisted every this many polls (~1 min), so a SystemUI crash while the
+    // screen stays on loses little.
+    private static final int STATS_SAVE_POLLS = 30;
+    private int mPollsSinceStatsSave;
 
     private final Runnable mPlaybackPoll = new Runnable() {
         @Override public void run() {
-            if (!mStarted) return;
+            if (!mReady || mDormant) return;
+            mStats.onWakeup(VideoRotationStats.WAKEUP_POLL);
+            if (++mPollsSinceStatsSave >= STATS_SAVE_POLLS) {
+                mPollsSinceStatsSave = 0;
+                mStats.save(getStatePrefs(), SystemClock.elapsedRealtime());
+            }
 
             // trabalha só quando for útil
-            if (mTopUid > 0 && mTopTaskId != INVALID_TASK_ID) {
+            if (mVisibleTaskCount > 0) {
                 refreshFromActivePlaybackConfigs();
             }
             evaluateState();
@@ -159,117 +242,289 @@ public final class VideoRotationController {
             if (aa.getContentType() == AudioAttributes.CONTENT_TYPE_MUSIC) continue;
 
             int uid = c.getClientUid();
-            if (uid > 0) mLastMovieSeenUptime.put(uid, now);
+            if (uid > 0) mCache.markVideoSeen(uid, now);
         }
     }
 
+    private final SensorEventListener mSensorListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            mStats.onWakeup(VideoRotationStats.WAKEUP_SENSOR);
+            final float[] v = event.values;
+            final int rot = mOrientationFilter.feed(event.timestamp / 1_000_000L, v[0], v[1], v[2]);
+            if (rot == OrientationFilter.NO_ROTATION) {
+                mStats.onSample(true /* dropped */);
+                return;
+            }
+            final long now = SystemClock.uptimeMillis();
+            if (now - mLastOrientationDecisionUptime < ORIENTATION_DEBOUNCE_MS) {
+                mStats.onSample(true /* dropped */);
+                return;
+            }
+            mStats.onSample(false /* dropped */);
+            mLastOrientationDecisionUptime = now;
+            onOrientationProposed(rot);
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+    };
+
+    private final CommandQueue.Callbacks mCommandQueueCallbacks = new CommandQueue.Callbacks() {
+        @Override
+        public void onRotationProposal(int rotation, boolean isValid) {
+            // Called on the main thread. Validity reflects the app's requested orientation, which
+            // we override while armed anyway, so only the proposed rotation matters here.
+            if (!mUsingRotationProposals) return;
+            mStats.onWakeup(VideoRotationStats.WAKEUP_SENSOR);
+            if (rotation < Surface.ROTATION_0 || rotation > Surface.ROTATION_270) {
+                mStats.onSample(true /* dropped */);
+                return;
+            }
+            mStats.onSample(mDormant /* dropped */);
+            Log.d(TAG, "proposal rot=" + rotation + " valid=" + isValid
+                    + " prev=" + mDesiredRotation);
+            onOrientationProposed(rotation);
+        }
+    };
+
+    private final RotationSettingsHub.Listener mRotationLockListener =
+            (key, value) -> evaluateState();
+
     private final TaskStackChangeListener mTaskListener = new TaskStackChangeListener() {
         @Override
         public void onTaskMovedToFront(int taskId) {
-            mMainHandler.post(VideoRotationController.this::onTopTaskPossiblyChanged);
+            mStats.onWakeup(VideoRotationStats.WAKEUP_TASK);
+            mMainHandler.post(() -> onTaskFocused(taskId));
         }
 
         @Override
         public void onTaskStackChanged() {
+            mStats.onWakeup(VideoRotationStats.WAKEUP_TASK);
             mMainHandler.post(VideoRotationController.this::onTopTaskPossiblyChanged);
         }
 
         @Override
         public void onTaskRemoved(int taskId) {
+            mStats.onWakeup(VideoRotationStats.WAKEUP_TASK);
             // If our armed task disappears, restore immediately.
-            if (mArmed && taskId == mArmedTaskId) {
-                mMainHandler.post(VideoRotationController.this::restoreAndDisarm);
-            }
-            mMainHandler.post(VideoRotationController.this::onTopTaskPossiblyChanged);
+            mMainHandler.post(() -> {
+                if (mArmed && taskId == mArmedTaskId) {
+                    restoreAndDisarm();
+                }
+                onTopTaskPossiblyChanged();
+            });
         }
     };
 
-    public VideoRotationController(Context context) {
+    /**
+     * @param bgExecutor serial background executor used for listener registration and the
+     *                   initial task query, keeping {@link #start()}/{@link #stop()} cheap on the
+     *                   main thread.
+     * @param settingsHub source of the rotation mode and lock state.
+     */
+    public VideoRotationController(Context context, Executor bgExecutor,
+            RotationSettingsHub settingsHub) {
         mContext = context;
         mMainHandler = new Handler(Looper.getMainLooper());
+        mBgExecutor = bgExecutor;
         mAudioManager = context.getSystemService(AudioManager.class);
         mPm = context.getPackageManager();
+        mDisplayManager = context.getSystemService(DisplayManager.class);
+        mSettingsHub = settingsHub;
+    }
+
+    /** Adds a callback; must be called on the main thread. */
+    public void addCallback(Callback callback) {
+        if (!mCallbacks.contains(callback)) {
+            mCallbacks.add(callback);
+        }
+    }
+
+    /** Removes a callback previously added with {@link #addCallback}. */
+    public void removeCallback(Callback callback) {
+        mCallbacks.remove(callback);
     }
 
+    /** @return true once {@link #start()} finished its background registrations. */
+    public boolean isReady() {
+        return mReady;
+    }
+
+    /** @return true while the controller is driving rotation for a video task. */
+    public boolean isArmed() {
+        return mArmed;
+    }
+
+    /**
+     * @return true when a rotation proposal would only suggest what the controller applies
+     *         itself: it is armed and the armed task is the focused one.
+     */
+    public boolean shouldSuppressRotationProposal() {
+        return mArmed && mVisibleTaskCount > 0 && mVisibleTaskOrder[0] == mArmedTaskId;
+    }
+
+    /**
+     * Starts following video playback. Returns immediately; binder registrations and the initial
+     * task query run on the background executor and {@link Callback#onReadyChanged} reports when
+     * the controller is live.
+     */
     public void start() {
         Log.d(TAG, "start()");
         if (mStarted) return;
         mStarted = true;
+        final int generation = ++mGeneration;
+        mScreenLifecycle = Dependency.get(ScreenLifecycle.class);
+        mScreenLifecycle.addObserver(mScreenObserver);
+        mKeyguardStateController = Dependency.get(KeyguardStateController.class);
+        mKeyguardStateController.addCallback(mKeyguardCallback);
+        updateDormant();
+
+        // Orientation source: WindowManager proposals when available, own sensor otherwise.
+        mUsingRotationProposals = shouldUseRotationProposals();
+        if (mUsingRotationProposals) {
+            mCommandQueue = Dependency.get(CommandQueue.class);
+            mCommandQueue.addCallback(mCommandQueueCallbacks);
+        }
+        final boolean useSensor = !mUsingRotationProposals;
+        mSettingsHub.addListener(RotationSettingsHub.KEY_ACCELEROMETER_ROTATION,
+                mContext.getMainExecutor(), mRotationLockListener);
+
+        mBgExecutor.execute(() -> {
+            TaskStackChangeListeners.getInstance().registerTaskStackListener(mTaskListener);
+            if (mAudioManager != null) {
+                mAudioManager.registerAudioPlaybackCallback(mPlaybackCallback, mMainHandler);
+            }
+            if (useSensor) {
+                enableSensorListener();
+            }
+            final ActivityManager.RunningTaskInfo[] tasks = fetchRunningTasks();
+            final int[] uids = resolveTaskUids(tasks);
+            final List<AudioPlaybackConfiguration> playback = (mAudioManager != null)
+                    ? mAudioManager.getActivePlaybackConfigurations() : null;
+            // Loads the snapshot file off the main thread.
+            mStats.load(getStatePrefs(), Settings.Global.getInt(mContext.getContentResolver(),
+                    Settings.Global.BOOT_COUNT, 0));
+            mMainHandler.post(() -> onStartCompleted(generation, tasks, uids, playback));
+        });
+    }
 
-        // Task listener
-        TaskStackChangeListeners.getInstance().registerTaskStackListener(mTaskListener);
+    private void onStartCompleted(int generation, ActivityManager.RunningTaskInfo[] tasks,
+            int[] uids, List<AudioPlaybackConfiguration> playback) {
+        // stop() (and maybe another start()) happened meanwhile; its own work is queued behind.
+        if (generation != mGeneration || !mStarted) return;
+        mReady = true;
 
-        // Payback Poll
+        applyVisibleTasks(tasks, uids);
+        if (playback != null) {
+            // Reconcile the retained cache with what is playing right now.
+            mCache.onPlaybackConfigs(playback, SystemClock.uptimeMillis());
+        }
+        resumeFromSnapshot();
+
+        dispatchReadyChanged(true);
+        if (mDormant) {
+            // Screen went off or keyguard showed while starting; wake up via updateDormant().
+            if (!mUsingRotationProposals) {
+                mBgExecutor.execute(this::disableSensorListener);
+            }
+            return;
+        }
         mMainHandler.removeCallbacks(mPlaybackPoll);
         mMainHandler.post(mPlaybackPoll);
+        evaluateState();
+    }
 
-        // Audio playback callback
-        if (mAudioManager != null) {
-            mAudioManager.registerAudioPlaybackCallback(mPlaybackCallback, mMainHandler);
-        }
+    /**
+     * While the screen is off, or the keyguard is showing and not occluded, the controller is
+     * dormant: no sensor, no poll and no evaluations.
+     */
+    private void updateDormant() {
+        final boolean screenOff = mScreenLifecycle != null
+                && mScreenLifecycle.getScreenState() == ScreenLifecycle.SCREEN_OFF;
+        final boolean dormant = mStarted && (screenOff
+                || (mKeyguardStateController != null && mKeyguardStateController.isShowing()
+                        && !mKeyguardStateController.isOccluded()));
+        if (dormant == mDormant) return;
+        mDormant = dormant;
+        Log.d(TAG, "dormant=" + dormant);
+        // Before onStartCompleted() nothing runs yet; it checks mDormant itself.
+        if (!mReady) return;
 
-        // Sensor orientation listener
-        mOrientationListener = new OrientationEventListener(mContext) {
-            @Override
-            public void onOrientationChanged(int degrees) {
-                
-                if (degrees == ORIENTATION_UNKNOWN) return;
-                final long now = SystemClock.uptimeMillis();
-                if (now - mLastOrientationDecisionUptime < ORIENTATION_DEBOUNCE_MS) {
-                    return;
-                }
-                mLastOrientationDecisionUptime = now;
-                int rot = degreesToRotationWithHysteresis(degrees, mDesiredRotation);
-                Log.d(TAG, "degrees=" + degrees + " prev=" + mDesiredRotation + " -> rot=" + rot);
-                if (rot != mDesiredRotation) {
-                    mDesiredRotation = rot;
-                    evaluateState();
-                } else if (mArmed) {
-                    // garante reaplicar se já está armado e algo mexeu na rotação
-                    evaluateState();
-                }
+        mMainHandler.removeCallbacks(mPlaybackPoll);
+        if (dormant) {
+            if (!mUsingRotationProposals) {
+                mBgExecutor.execute(this::disableSensorListener);
             }
-        };
-        if (mOrientationListener.canDetectOrientation()) {
-            mOrientationListener.enable();
-        } else {
-            Log.w(TAG, "Orientation sensor not available; controller will be ineffective.");
+            // Screen off is a cheap point to persist the counters.
+            mStats.save(getStatePrefs(), SystemClock.elapsedRealtime());
+            return;
         }
-
-        // Initial fetch
-        onTopTaskPossiblyChanged();
+        if (!mUsingRotationProposals) {
+            mBgExecutor.execute(this::enableSensorListener);
+        }
+        if (mTasksStale) {
+            mTasksStale = false;
+            refreshVisibleTasks();
+        }
+        // The poll refreshes playback and evaluates once, then keeps its usual period.
+        mMainHandler.post(mPlaybackPoll);
     }
 
+    /**
+     * Stops following playback and restores the locked rotation right away; listener
+     * unregistration runs on the background executor.
+     */
     public void stop() {
         Log.d(TAG, "stop()");
         if (!mStarted) return;
         mStarted = false;
+        ++mGeneration;
         mMainHandler.removeCallbacks(mPlaybackPoll);
         restoreAndDisarm();
 
-        try {
-            TaskStackChangeListeners.getInstance().unregisterTaskStackListener(mTaskListener);
-        } catch (Throwable t) {
-            // ignore
+        if (mScreenLifecycle != null) {
+            mScreenLifecycle.removeObserver(mScreenObserver);
+            mScreenLifecycle = null;
+        }
+        if (mKeyguardStateController != null) {
+            mKeyguardStateController.removeCallback(mKeyguardCallback);
+            mKeyguardStateController = null;
+        }
+        mDormant = false;
+        mTasksStale = false;
+
+        if (mCommandQueue != null) {
+            mCommandQueue.removeCallback(mCommandQueueCallbacks);
+            mCommandQueue = null;
         }
+        mUsingRotationProposals = false;
+        mSettingsHub.removeListener(RotationSettingsHub.KEY_ACCELEROMETER_ROTATION,
+                mRotationLockListener);
 
-        if (mAudioManager != null) {
+        mBgExecutor.execute(() -> {
             try {
-                mAudioManager.unregisterAudioPlaybackCallback(mPlaybackCallback);
+                TaskStackChangeListeners.getInstance().unregisterTaskStackListener(mTaskListener);
             } catch (Throwable t) {
                 // ignore
             }
-        }
 
-        if (mOrientationListener != null) {
-            mOrientationListener.disable();
-            mOrientationListener = null;
-        }
+            if (mAudioManager != null) {
+                try {
+                    mAudioManager.unregisterAudioPlaybackCallback(mPlaybackCallback);
+                } catch (Throwable t) {
+                    // ignore
+                }
+            }
+
+            disableSensorListener();
+        });
 
         // limpa estado interno
         mTopUid = -1;
         mTopTaskId = INVALID_TASK_ID;
-        mTopPackage = null;
+        mVisibleTaskUids.clear();
+        mVisibleTaskCount = 0;
 
         mArmed = false;
         mArmedTaskId = INVALID_TASK_ID;
@@ -278,51 +533,196 @@ public final class VideoRotationController {
 
         mLastOrientationDecisionUptime = 0L;
 
-        // MUITO importante pro “só alguns segundos”
-        mLastMovieSeenUptime.clear();
+        // mCache is kept on purpose: its entries expire with VIDEO_GRACE_MS and are reconciled
+        // with the active playback list on the next start().
+
+        if (mReady) {
+            mStats.save(getStatePrefs(), SystemClock.elapsedRealtime());
+            mReady = false;
+            dispatchReadyChanged(false);
+        }
+    }
+
+    /**
+     * WindowManager only sends rotation proposals while rotation is locked and rotation
+     * suggestions are enabled, which is exactly when this controller acts; if the user turned
+     * suggestions off the proposal stream is silent and we fall back to our own sensor listener.
+     */
+    private boolean shouldUseRotationProposals() {
+        if (!SystemProperties.getBoolean(PROP_USE_ROTATION_PROPOSALS, true)) {
+            return false;
+        }
+        return Settings.Secure.getInt(mContext.getContentResolver(),
+                Settings.Secure.SHOW_ROTATION_SUGGESTIONS,
+                Settings.Secure.SHOW_ROTATION_SUGGESTIONS_DEFAULT)
+                != Settings.Secure.SHOW_ROTATION_SUGGESTIONS_DISABLED;
+    }
+
+    /** Runs on the background executor. */
+    private void enableSensorListener() {
+        if (mSensorListening) return;
+        if (mSensorManager == null) {
+            mSensorManager = mContext.getSystemService(SensorManager.class);
+        }
+        final Sensor accel = (mSensorManager != null)
+                ? mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER) : null;
+        if (accel == null) {
+            Log.w(TAG, "Orientation sensor not available; controller will be ineffective.");
+            return;
+        }
+        mOrientationFilter.reset();
+        mSensorListening = mSensorManager.registerListener(mSensorListener, accel,
+                SensorManager.SENSOR_DELAY_NORMAL, mMainHandler);
+        if (mSensorListening) {
+            mStats.onSensorEnabled(SystemClock.elapsedRealtime());
+        }
+    }
+
+    /** Runs on the background executor. */
+    private void disableSensorListener() {
+        if (mSensorListening) {
+            mSensorManager.unregisterListener(mSensorListener);
+            mSensorListening = false;
+            mStats.onSensorDisabled(SystemClock.elapsedRealtime());
+        }
+    }
+
+    private void onOrientationProposed(int rot) {
+        if (mDormant) return;
+        if (rot != mDesiredRotation) {
+            mDesiredRotation = rot;
+            evaluateState();
+        } else if (mArmed) {
+            // garante reaplicar se já está armado e algo mexeu na rotação
+            evaluateState();
+        }
+    }
+
+    /**
+     * Focus moved to {@code taskId}. If it is one of the visible tasks we already know about the
+     * visible set did not change, so re-select the target without another binder call.
+     */
+    private void onTaskFocused(int taskId) {
+        if (!mReady) return;
+        if (mDormant) {
+            mTasksStale = true;
+            return;
+        }
+        final int index = indexOfVisibleTask(taskId);
+        if (index < 0) {
+            onTopTaskPossiblyChanged();
+            return;
+        }
+        System.arraycopy(mVisibleTaskOrder, 0, mVisibleTaskOrder, 1, index);
+        mVisibleTaskOrder[0] = taskId;
+        evaluateState();
     }
 
     private void onTopTaskPossiblyChanged() {
-        ActivityManager.RunningTaskInfo task = null;
+        if (!mReady) return;
+        if (mDormant) {
+            // Refetched once on wake instead of on every stack change while dormant.
+            mTasksStale = true;
+            return;
+        }
+        refreshVisibleTasks();
+        evaluateState();
+    }
+
+    private void refreshVisibleTasks() {
+        final ActivityManager.RunningTaskInfo[] tasks = fetchRunningTasks();
+        applyVisibleTasks(tasks, resolveTaskUids(tasks));
+    }
+
+    private static ActivityManager.RunningTaskInfo[] fetchRunningTasks() {
         try {
-            task = ActivityManagerWrapper.getInstance().getRunningTask();
+            return ActivityManagerWrapper.getInstance().getRunningTasks(
+                    false /* filterOnlyVisibleRecents */);
         } catch (Throwable t) {
-            Log.w(TAG, "getRunningTask failed", t);
+            Log.w(TAG, "getRunningTasks failed", t);
+            return null;
         }
+    }
 
-        final int newTaskId = (task != null) ? task.taskId : INVALID_TASK_ID;
-        final String newPkg = extractPackage(task);
+    private int[] resolveTaskUids(ActivityManager.RunningTaskInfo[] tasks) {
+        if (tasks == null) return null;
+        final int[] uids = new int[tasks.length];
+        for (int i = 0; i < tasks.length; i++) {
+            final ActivityManager.RunningTaskInfo task = tasks[i];
+            uids[i] = (task != null && task.isVisible) ? resolveUid(extractPackage(task)) : -1;
+        }
+        return uids;
+    }
+
+    private void applyVisibleTasks(ActivityManager.RunningTaskInfo[] tasks, int[] uids) {
+        mVisibleTaskUids.clear();
+        mVisibleTaskCount = 0;
+        if (tasks == null) return;
+        for (int i = 0; i < tasks.length; i++) {
+            if (mVisibleTaskCount == MAX_VISIBLE_TASKS) break;
+            final ActivityManager.RunningTaskInfo task = tasks[i];
+            if (task == null || !task.isVisible) continue;
+            mVisibleTaskUids.put(task.taskId, uids[i]);
+            mVisibleTaskOrder[mVisibleTaskCount++] = task.taskId;
+        }
+    }
 
-        if (newTaskId != mTopTaskId || (newPkg != null && !newPkg.equals(mTopPackage))) {
-            // If we were armed for a different task, restore immediately.
-            if (mArmed && newTaskId != mArmedTaskId) {
-                restoreAndDisarm();
+    /**
+     * Picks the task to follow among the visible ones: keep the armed task while it still plays
+     * video, else the most recent visible task with video, else the most recent visible task.
+     */
+    private void updateTargetTask() {
+        int taskId = (mVisibleTaskCount > 0) ? mVisibleTaskOrder[0] : INVALID_TASK_ID;
+        if (mArmed && isVisibleTaskWithVideo(mArmedTaskId)) {
+            taskId = mArmedTaskId;
+        } else {
+            for (int i = 0; i < mVisibleTaskCount; i++) {
+                if (isVisibleTaskWithVideo(mVisibleTaskOrder[i])) {
+                    taskId = mVisibleTaskOrder[i];
+                    break;
+                }
             }
-            mTopTaskId = newTaskId;
-            mTopPackage = newPkg;
-            mTopUid = resolveUid(newPkg);
+        }
+
+        if (taskId == mTopTaskId) return;
 
-            Log.d(TAG, "Top task changed: taskId=" + mTopTaskId
-                    + " pkg=" + mTopPackage
-                    + " uid=" + mTopUid);
+        // If we were armed for a different task, restore immediately.
+        if (mArmed && taskId != mArmedTaskId) {
+            restoreAndDisarm();
         }
+        mTopTaskId = taskId;
+        mTopUid = mVisibleTaskUids.get(taskId, -1);
+        Log.d(TAG, "Target task changed: taskId=" + mTopTaskId + " uid=" + mTopUid);
+    }
 
-        evaluateState();
+    private boolean isVisibleTaskWithVideo(int taskId) {
+        final int uid = mVisibleTaskUids.get(taskId, -1);
+        return uid > 0 && isMoviePlaybackActiveOrRecent(uid);
     }
 
-    private void evaluateState() {
+    private int indexOfVisibleTask(int taskId) {
+        for (int i = 0; i < mVisibleTaskCount; i++) {
+            if (mVisibleTaskOrder[i] == taskId) return i;
+        }
+        return -1;
+    }
 
-        final int mode = Settings.System.getInt(mContext.getContentResolver(),
-                "custom_rotation_mode", 0);
+    private void evaluateState() {
+        // Both reads are served from the hub cache while the owning views/controller observe them.
+        final int mode = mSettingsHub.getInt(RotationSettingsHub.KEY_CUSTOM_ROTATION_MODE);
         if (mode != 2) {
             if (mArmed) restoreAndDisarm();
             return;
         }
 
-        if (!mStarted) return;
+        if (!mReady || mDormant) return;
+
+        updateTargetTask();
 
         // Only act when user rotation is locked.
-        if (!RotationPolicy.isRotationLocked(mContext)) {
+        final boolean locked =
+                mSettingsHub.getInt(RotationSettingsHub.KEY_ACCELEROMETER_ROTATION) == 0;
+        if (!locked) {
             if (mArmed) restoreAndDisarm();
             return;
         }
@@ -333,10 +733,9 @@ public final class VideoRotationController {
         }
 
         final boolean videoForTop = isMoviePlaybackActiveOrRecent(mTopUid);
-        Log.d(TAG, "Top uid=" + mTopUid + " pkg=" + mTopPackage);
+        Log.d(TAG, "Target uid=" + mTopUid + " task=" + mTopTaskId);
 
-        Log.d(TAG, "evaluateState locked=" 
-                + RotationPolicy.isRotationLocked(mContext)
+        Log.d(TAG, "evaluateState locked=" + locked
                 + " video=" + videoForTop
                 + " desired=" + mDesiredRotation
                 + " current=" + getDisplayRotation());
@@ -354,6 +753,8 @@ public final class VideoRotationController {
             // Reset applied rotation tracking to avoid skipping first apply.
             Log.d(TAG, "ARMING for task=" + mTopTaskId + " restoreRotation=" + mRestoreRotation);
             mLastAppliedRotation = -1;
+            saveSnapshot();
+            onArmed();
         }
 
         // Follow the device orientation.
@@ -377,11 +778,14 @@ public final class VideoRotationController {
             return;
         }
 
+        dispatchRotationImminent(mDesiredRotation);
+        beginTransitionTrace(mDesiredRotation);
         RotationPolicy.setRotationLockAtAngle(
                 mContext,
                 /* enabled */ true,
                 /* rotation */ mDesiredRotation,
                 /* caller */ "VideoRotationController#followSensor");
+        mStats.onRotationApplied();
 
         mLastAppliedRotation = mDesiredRotation;
     }
@@ -396,6 +800,8 @@ public final class VideoRotationController {
         if (rot < 0 || rot > 3) {
             rot = getDisplayRotation();
             Log.w(TAG, "mRestoreRotation inválido; usando current=" + rot);
+        } else if (rot != getDisplayRotation()) {
+            dispatchRotationImminent(rot);
         }
 
         RotationPolicy.setRotationLockAtAngle(
@@ -410,16 +816,158 @@ public final class VideoRotationController {
         // reset de estado
         mRestoreRotation = -1;
         mLastAppliedRotation = -1;
+
+        clearSnapshot();
+        // The restore rotation is not tracked, only close a follow transition still in flight.
+        endTransitionTrace(false /* completed */);
+        if (mDisplayManager != null) {
+            mDisplayManager.unregisterDisplayListener(mDisplayListener);
+        }
+        dispatchArmedChanged(false);
+    }
+
+    private void onArmed() {
+        if (mDisplayManager != null) {
+            mDisplayManager.registerDisplayListener(mDisplayListener, mMainHandler);
+        }
+        dispatchArmedChanged(true);
+    }
+
+    private SharedPreferences getStatePrefs() {
+        if (mStatePrefs == null) {
+            // Device protected so it is readable before the user unlocks after a crash loop.
+            mStatePrefs = mContext.createDeviceProtectedStorageContext()
+                    .getSharedPreferences(STATE_PREFS, Context.MODE_PRIVATE);
+        }
+        return mStatePrefs;
+    }
+
+    private void saveSnapshot() {
+        getStatePrefs().edit()
+                .putInt(KEY_ARMED_TASK, mArmedTaskId)
+                .putInt(KEY_RESTORE_ROTATION, mRestoreRotation)
+                .putInt(KEY_VIDEO_UID, mTopUid)
+                .apply();
+    }
+
+    private void clearSnapshot() {
+        final SharedPreferences prefs = getStatePrefs();
+        if (prefs.contains(KEY_RESTORE_ROTATION)) {
+            // Only the snapshot keys; the stats live in the same file.
+            prefs.edit()
+                    .remove(KEY_ARMED_TASK)
+                    .remove(KEY_RESTORE_ROTATION)
+                    .remove(KEY_VIDEO_UID)
+                    .apply();
+        }
+    }
+
+    /**
+     * If a previous SystemUI process died while armed, either resume armed for the same task
+     * (still visible, same uid) or put the locked rotation back right away.
+     */
+    private void resumeFromSnapshot() {
+        final SharedPreferences prefs = getStatePrefs();
+        final int restoreRotation = prefs.getInt(KEY_RESTORE_ROTATION, -1);
+        if (restoreRotation < Surface.ROTATION_0 || restoreRotation > Surface.ROTATION_270) {
+            return;
+        }
+        final int taskId = prefs.getInt(KEY_ARMED_TASK, INVALID_TASK_ID);
+        final int uid = prefs.getInt(KEY_VIDEO_UID, -1);
+
+        if (uid > 0 && mVisibleTaskUids.get(taskId, -1) == uid) {
+            Log.d(TAG, "Resuming armed state for task=" + taskId + " uid=" + uid);
+            // Seed the grace window; the playback callback confirms or clears it.
+            mCache.markVideoSeen(uid, SystemClock.uptimeMillis());
+            mArmed = true;
+            mArmedTaskId = taskId;
+            mRestoreRotation = restoreRotation;
+            mDesiredRotation = getDisplayRotation();
+            mLastAppliedRotation = mDesiredRotation;
+            onArmed();
+            return;
+        }
+
+        Log.d(TAG, "Recovering rotation " + restoreRotation + " after restart");
+        RotationPolicy.setRotationLockAtAngle(
+                mContext,
+                /* enabled */ true,
+                /* rotation */ restoreRotation,
+                /* caller */ "VideoRotationController#recover");
+        clearSnapshot();
+    }
+
+    /** Dumps the controller state, counters and caches. Main thread only. */
+    public void dump(PrintWriter pw) {
+        pw.println("    VideoRotationController:");
+        pw.println("      started=" + mStarted + " ready=" + mReady + " dormant=" + mDormant
+                + " source=" + (mUsingRotationProposals ? "proposals" : "sensor"));
+        pw.println("      armed=" + mArmed + " armedTask=" + mArmedTaskId
+                + " restoreRotation=" + mRestoreRotation
+                + " target=" + mTopTaskId + "/" + mTopUid
+                + " desired=" + mDesiredRotation + " lastApplied=" + mLastAppliedRotation
+                + " visibleTasks=" + mVisibleTaskCount);
+        pw.println("      transitions=" + mTransitionCount
+                + " lastMs=" + mLastTransitionMs
+                + " avgMs=" + (mTransitionCount > 0 ? mTransitionTotalMs / mTransitionCount : -1));
+        mStats.dump(pw, SystemClock.elapsedRealtime());
+        mCache.dump(pw, SystemClock.uptimeMillis());
+    }
+
+    private void dispatchReadyChanged(boolean ready) {
+        for (int i = mCallbacks.size() - 1; i >= 0; i--) {
+            mCallbacks.get(i).onReadyChanged(ready);
+        }
+    }
+
+    private void dispatchArmedChanged(boolean armed) {
+        for (int i = mCallbacks.size() - 1; i >= 0; i--) {
+            mCallbacks.get(i).onArmedChanged(armed);
+        }
+        VideoRotationState.getInstance().setArmed(this, armed);
+    }
+
+    private void dispatchRotationImminent(int targetRotation) {
+        Trace.beginSection("VideoRotation#rotationImminent");
+        for (int i = mCallbacks.size() - 1; i >= 0; i--) {
+            mCallbacks.get(i).onRotationImminent(targetRotation);
+        }
+        VideoRotationState.getInstance().notifyRotationImminent(targetRotation);
+        Trace.endSection();
+    }
+
+    private void beginTransitionTrace(int rotation) {
+        endTransitionTrace(false /* completed */);
+        mPendingTransitionRotation = rotation;
+        mPendingTransitionStartUptime = SystemClock.uptimeMillis();
+        Trace.beginAsyncSection(TRACE_ROTATION_TRANSITION, ++mTransitionCookie);
+    }
+
+    /**
+     * Closes the pending transition trace. Only a {@code completed} transition, i.e. the display
+     * reported the requested rotation, counts towards the durations reported by {@link #dump}.
+     */
+    private void endTransitionTrace(boolean completed) {
+        if (mPendingTransitionRotation < 0) return;
+        Trace.endAsyncSection(TRACE_ROTATION_TRANSITION, mTransitionCookie);
+        if (completed) {
+            mLastTransitionMs = SystemClock.uptimeMillis() - mPendingTransitionStartUptime;
+            mTransitionTotalMs += mLastTransitionMs;
+            mTransitionCount++;
+            Log.d(TAG, "rotation to " + mPendingTransitionRotation + " took "
+                    + mLastTransitionMs + "ms");
+        }
+        mPendingTransitionRotation = -1;
     }
 
     private boolean isMoviePlaybackActiveOrRecent(int uid) {
-        final long now = SystemClock.uptimeMillis();
-        final long last = mLastMovieSeenUptime.get(uid, 0L);
-        return (last > 0L) && (now - last <= VIDEO_GRACE_MS);
+        return mCache.isVideoActiveOrRecent(uid, SystemClock.uptimeMillis(), VIDEO_GRACE_MS);
     }
 
     private int getDisplayRotation() {
-        Display d = mContext.getDisplay();
+        // Through DisplayManager: the controller does not need a display associated context.
+        Display d = (mDisplayManager != null)
+                ? mDisplayManager.getDisplay(Display.DEFAULT_DISPLAY) : null;
         if (d == null) return Surface.ROTATION_0;
         return d.getRotation();
     }
@@ -433,13 +981,13 @@ public final class VideoRotationController {
 
     private int resolveUid(String pkg) {
         if (pkg == null) return -1;
-        Integer cached = mUidCache.get(pkg);
+        Integer cached = mCache.getUid(pkg);
         if (cached != null) return cached;
 
         try {
             ApplicationInfo ai = mPm.getApplicationInfo(pkg, 0);
             int uid = ai.uid;
-            mUidCache.put(pkg, uid);
+            mCache.putUid(pkg, uid);
             return uid;
         } catch (PackageManager.NameNotFoundException e) {
             return -1;
@@ -448,36 +996,4 @@ public final class VideoRotationController {
             return -1;
         }
     }
-
-    /**
-     * Converts sensor degrees into Surface rotation with simple hysteresis.
-     */
-    private static int degreesToRotationWithHysteresis(int degrees, int prevRotation) {
-        int d = ((degrees % 360) + 360) % 360;
-
-        final int PORTRAIT_0_CENTER = 0;
-        final int LANDSCAPE_90_CENTER = 90;
-        final int PORTRAIT_180_CENTER = 180;
-        final int LANDSCAPE_270_CENTER = 270;
-
-        final int W = 30;
-
-        if (isWithin(d, PORTRAIT_0_CENTER, W)) return Surface.ROTATION_0;
-
-        // >>> SWAP AQUI <<<
-        if (isWithin(d, LANDSCAPE_90_CENTER, W)) return Surface.ROTATION_270;
-
-        if (isWithin(d, PORTRAIT_180_CENTER, W)) return Surface.ROTATION_180;
-
-        // >>> SWAP AQUI <<<
-        if (isWithin(d, LANDSCAPE_270_CENTER, W)) return Surface.ROTATION_90;
-
-        return prevRotation;
-    }
-
-    private static boolean isWithin(int d, int center, int w) {
-        int diff = Math.abs(d - center);
-        diff = Math.min(diff, 360 - diff);
-        return diff <= w;
-    }
-}
\ No newline at end of file
+}
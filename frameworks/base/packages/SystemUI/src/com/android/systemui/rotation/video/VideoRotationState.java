@@ -0,0 +1,66 @@
+package com.android.systemui.rotation.video;
+
+import android.util.ArraySet;
+
+import java.util.ArrayList;
+
+/**
+ * Process wide view of what the running {@link VideoRotationController}s do, for views that do
+ * not own one: the status bar follows the controller of the nav bar next to it.
+ *
+ * Controllers publish their armed state and rotation hints here in addition to their own
+ * callbacks. Armed is reported while at least one controller is armed. Main thread only.
+ */
+public final class VideoRotationState {
+    private static final VideoRotationState sInstance = new VideoRotationState();
+
+    private final ArrayList<VideoRotationController.Callback> mCallbacks = new ArrayList<>();
+    private final ArraySet<VideoRotationController> mArmedControllers = new ArraySet<>();
+
+    public static VideoRotationState getInstance() {
+        return sInstance;
+    }
+
+    private VideoRotationState() {}
+
+    /**
+     * Adds a callback for {@link VideoRotationController.Callback#onArmedChanged} and
+     * {@link VideoRotationController.Callback#onRotationImminent}. A callback added while armed
+     * gets {@code onArmedChanged(true)} right away.
+     */
+    public void addCallback(VideoRotationController.Callback callback) {
+        if (mCallbacks.contains(callback)) return;
+        mCallbacks.add(callback);
+        if (isArmed()) {
+            callback.onArmedChanged(true);
+        }
+    }
+
+    public void removeCallback(VideoRotationController.Callback callback) {
+        mCallbacks.remove(callback);
+    }
+
+    /** @return true while any controller drives the display rotation. */
+    public boolean isArmed() {
+        return !mArmedControllers.isEmpty();
+    }
+
+    void setArmed(VideoRotationController controller, boolean armed) {
+        final boolean wasArmed = isArmed();
+        if (armed) {
+            mArmedControllers.add(controller);
+        } else {
+            mArmedControllers.remove(controller);
+        }
+        if (wasArmed == isArmed()) return;
+        for (int i = mCallbacks.size() - 1; i >= 0; i--) {
+            mCallbacks.get(i).onArmedChanged(!wasArmed);
+        }
+    }
+
+    void notifyRotationImminent(int targetRotation) {
+        for (int i = mCallbacks.size() - 1; i >= 0; i--) {
+            mCallbacks.get(i).onRotationImminent(targetRotation);
+        }
+    }
+}
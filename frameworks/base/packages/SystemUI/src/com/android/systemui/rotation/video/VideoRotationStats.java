@@ -0,0 +1,118 @@
+package com.android.systemui.rotation.video;
+
+import android.content.SharedPreferences;
+
+import java.io.PrintWriter;
+
+/**
+ * Cost counters of {@link VideoRotationController}, to correlate contextual mode with battery
+ * drain reports: handler wakeups per cause, orientation samples, time the fallback sensor was
+ * registered and rotations applied.
+ *
+ * Counters cover the current boot: they are persisted in the controller state prefs and start
+ * over when {@code Settings.Global.BOOT_COUNT} differs from the stored one. Sensor enable/disable
+ * happens on the background executor, so every method is synchronized.
+ */
+final class VideoRotationStats {
+    static final int WAKEUP_POLL = 0;
+    static final int WAKEUP_AUDIO = 1;
+    static final int WAKEUP_TASK = 2;
+    static final int WAKEUP_SENSOR = 3;
+    private static final String[] WAKEUP_NAMES = { "poll", "audio", "task", "sensor" };
+
+    private static final String KEY_BOOT_COUNT = "stats_boot_count";
+    private static final String KEY_WAKEUPS = "stats_wakeups_";
+    private static final String KEY_SAMPLES = "stats_samples";
+    private static final String KEY_SAMPLES_DROPPED = "stats_samples_dropped";
+    private static final String KEY_SENSOR_MS = "stats_sensor_ms";
+    private static final String KEY_ROTATIONS = "stats_rotations";
+
+    private final long[] mWakeups = new long[WAKEUP_NAMES.length];
+    private long mSamples;
+    private long mSamplesDropped;
+    private long mSensorEnabledMs;
+    // elapsedRealtime the sensor was registered at, 0 while not registered.
+    private long mSensorEnabledSince;
+    private long mRotationsApplied;
+    private int mBootCount = -1;
+
+    synchronized void onWakeup(int cause) {
+        mWakeups[cause]++;
+    }
+
+    synchronized void onSample(boolean dropped) {
+        mSamples++;
+        if (dropped) mSamplesDropped++;
+    }
+
+    synchronized void onSensorEnabled(long now) {
+        if (mSensorEnabledSince == 0) {
+            mSensorEnabledSince = now;
+        }
+    }
+
+    synchronized void onSensorDisabled(long now) {
+        if (mSensorEnabledSince != 0) {
+            mSensorEnabledMs += now - mSensorEnabledSince;
+            mSensorEnabledSince = 0;
+        }
+    }
+
+    synchronized void onRotationApplied() {
+        mRotationsApplied++;
+    }
+
+    /**
+     * Adds the counters stored for {@code bootCount}, e.g. by a SystemUI process that died earlier
+     * in this boot. Counters stored for a previous boot are dropped and overwritten.
+     */
+    synchronized void load(SharedPreferences prefs, int bootCount) {
+        if (mBootCount == bootCount) return;
+        if (prefs.getInt(KEY_BOOT_COUNT, -1) == bootCount) {
+            for (int i = 0; i < mWakeups.length; i++) {
+                mWakeups[i] += prefs.getLong(KEY_WAKEUPS + WAKEUP_NAMES[i], 0);
+            }
+            mSamples += prefs.getLong(KEY_SAMPLES, 0);
+            mSamplesDropped += prefs.getLong(KEY_SAMPLES_DROPPED, 0);
+            mSensorEnabledMs += prefs.getLong(KEY_SENSOR_MS, 0);
+            mRotationsApplied += prefs.getLong(KEY_ROTATIONS, 0);
+        }
+        mBootCount = bootCount;
+        save(prefs, 0);
+    }
+
+    /** Persists the counters; {@code now} closes the running sensor interval, if any. */
+    synchronized void save(SharedPreferences prefs, long now) {
+        if (mBootCount == -1) return;
+        long sensorMs = mSensorEnabledMs;
+        if (mSensorEnabledSince != 0 && now != 0) {
+            sensorMs += now - mSensorEnabledSince;
+        }
+        final SharedPreferences.Editor editor = prefs.edit().putInt(KEY_BOOT_COUNT, mBootCount);
+        for (int i = 0; i < mWakeups.length; i++) {
+            editor.putLong(KEY_WAKEUPS + WAKEUP_NAMES[i], mWakeups[i]);
+        }
+        editor.putLong(KEY_SAMPLES, mSamples)
+                .putLong(KEY_SAMPLES_DROPPED, mSamplesDropped)
+                .putLong(KEY_SENSOR_MS, sensorMs)
+                .putLong(KEY_ROTATIONS, mRotationsApplied)
+                .apply();
+    }
+
+    synchronized void dump(PrintWriter pw, long now) {
+        final StringBuilder wakeups = new StringBuilder();
+        for (int i = 0; i < mWakeups.length; i++) {
+            if (i > 0) wakeups.append(' ');
+            wakeups.append(WAKEUP_NAMES[i]).append('=').append(mWakeups[i]);
+        }
+        long sensorMs = mSensorEnabledMs;
+        if (mSensorEnabledSince != 0) {
+            sensorMs += now - mSensorEnabledSince;
+        }
+        pw.println("      stats (boot " + mBootCount + "): wakeups{" + wakeups + "}");
+        pw.println("      samples=" + mSamples + " dropped=" + mSamplesDropped
+                + " sensorEnabledMs=" + sensorMs
+                + (mSensorEnabledSince != 0 ? " (enabled)" : "")
+                + " rotationsApplied=" + mRotationsApplied);
+    }
+}
@@ -21,14 +21,18 @@ import static com.android.systemui.Flags.truncatedStatusBarIconsFix;
 
 import android.annotation.Nullable;
 import android.content.Context;
+import android.content.pm.ActivityInfo;
 import android.content.res.Configuration;
+import android.content.res.Resources;
 import android.graphics.Insets;
 import android.graphics.Rect;
 import android.inputmethodservice.InputMethodService;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.Trace;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.ContextThemeWrapper;
 import android.view.Display;
 import android.view.DisplayCutout;
@@ -38,18 +42,24 @@ import android.view.Surface;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowInsets;
+import android.view.WindowInsets.Type.InsetsType;
+import android.view.WindowInsetsController.Appearance;
+import android.view.WindowInsetsController.Behavior;
 import android.view.WindowManagerGlobal;
 import android.view.accessibility.AccessibilityEvent;
 import android.widget.FrameLayout;
 import android.widget.LinearLayout;
 
 import com.android.internal.policy.SystemBarUtils;
+import com.android.internal.statusbar.LetterboxDetails;
+import com.android.internal.view.AppearanceRegion;
 import com.android.settingslib.Utils;
 import com.android.systemui.Dependency;
 import com.android.systemui.Gefingerpoken;
 import com.android.systemui.plugins.DarkIconDispatcher;
 import com.android.systemui.plugins.DarkIconDispatcher.DarkReceiver;
 import com.android.systemui.res.R;
+import com.android.systemui.rotation.RotationSettingsHub;
 import com.android.systemui.shared.rotation.FloatingRotationButton;
 import com.android.systemui.shared.rotation.RotationButtonController;
 import com.android.systemui.statusbar.CommandQueue;
@@ -61,15 +71,18 @@ import com.android.systemui.user.ui.binder.StatusBarUserChipViewBinder;
 import com.android.systemui.user.ui.viewmodel.StatusBarUserChipViewModel;
 import com.android.systemui.util.leak.RotationUtils;
 import com.android.systemui.rotation.video.VideoRotationController;
-import android.database.ContentObserver;
+import com.android.systemui.rotation.video.VideoRotationState;
 import android.os.Handler;
-import android.os.Looper;
-import android.provider.Settings;
+import android.os.HandlerExecutor;
 
 import java.util.Objects;
 
 public class PhoneStatusBarView extends FrameLayout implements Callbacks {
     private static final String TAG = "PhoneStatusBarView";
+    // What a rotation alone changes. A fold/unfold or display switch also changes the smallest
+    // width or screen layout, and those still go through updateResources().
+    private static final int ROTATION_CONFIG_CHANGES = ActivityInfo.CONFIG_ORIENTATION
+            | ActivityInfo.CONFIG_SCREEN_SIZE | ActivityInfo.CONFIG_WINDOW_CONFIGURATION;
     private final CommandQueue mCommandQueue;
     private final StatusBarContentInsetsProvider mContentInsetsProvider;
     private final StatusBarWindowController mStatusBarWindowController;
@@ -92,48 +105,134 @@ public class PhoneStatusBarView extends FrameLayout implements Callbacks {
     private int mDensity;
     private float mFontScale;
 
-    /**
-     * Draw this many pixels into the left/right side of the cutout to optimally use the space
-     */
-    private int mCutoutSideNudge = 0;
+    // Resolved dimensions and child views, per Configuration.orientation (see ResourceSnapshot).
+    private final ResourceSnapshot[] mResourceSnapshots = new ResourceSnapshot[2];
 
-    private static final String KEY_CUSTOM_ROTATION_MODE = "custom_rotation_mode";
     private int mLastCustomRotationMode = -1;
 
-    private final ContentObserver mCustomRotationModeObserver =
-            new ContentObserver(new Handler(Looper.getMainLooper())) {
+    private final RotationSettingsHub.Listener mCustomRotationModeListener =
+            (key, value) -> applyCustomRotationModeForStatusBar(value);
+
+    private final VideoRotationController.Callback mVideoRotationCallback =
+            new VideoRotationController.Callback() {
+                @Override
+                public void onArmedChanged(boolean armed) {
+                    mVideoArmed = armed;
+                    updateLowActivityMode();
+                }
+
                 @Override
-                public void onChange(boolean selfChange) {
-                    applyCustomRotationModeForStatusBar();
+                public void onRotationImminent(int targetRotation) {
+                    prewarmLayoutEntry(targetRotation);
                 }
             };
 
-    private void applyCustomRotationModeForStatusBar() {
+    // Tracks whether the app hides the status bar, to know when armed video is fullscreen.
+    private final Callbacks mSystemBarsCallback = new Callbacks() {
+        @Override
+        public void onSystemBarAttributesChanged(int displayId, @Appearance int appearance,
+                AppearanceRegion[] appearanceRegions, boolean navbarColorManagedByIme,
+                @Behavior int behavior, @InsetsType int requestedVisibleTypes,
+                String packageName, LetterboxDetails[] letterboxDetails) {
+            if (displayId != mContext.getDisplayId()) return;
+            mStatusBarRequested = (requestedVisibleTypes & WindowInsets.Type.statusBars()) != 0;
+            updateLowActivityMode();
+        }
+
+        @Override
+        public void showTransient(int displayId, @InsetsType int types,
+                boolean isGestureOnSystemBar) {
+            if (displayId != mContext.getDisplayId()) return;
+            if ((types & WindowInsets.Type.statusBars()) != 0) {
+                mStatusBarTransient = true;
+                updateLowActivityMode();
+            }
+        }
+
+        @Override
+        public void abortTransient(int displayId, @InsetsType int types) {
+            if (displayId != mContext.getDisplayId()) return;
+            if ((types & WindowInsets.Type.statusBars()) != 0) {
+                mStatusBarTransient = false;
+                updateLowActivityMode();
+            }
+        }
+    };
+
+    // Low-activity mode: armed video with the status bar hidden. Dark receivers are detached and
+    // layout work is deferred until the bar shows again.
+    private boolean mVideoArmed;
+    private boolean mStatusBarRequested = true;
+    private boolean mStatusBarTransient;
+    private boolean mLowActivity;
+    private boolean mPendingResources;
+    private boolean mPendingLayout;
+
+    // Layout values per RotationUtils rotation, see getLayoutEntry().
+    private final SparseArray<LayoutEntry> mLayoutCache = new SparseArray<>(4);
+    private final Configuration mLastConfiguration = new Configuration();
+
+    private void applyCustomRotationModeForStatusBar(int mode) {
         // Só faz sentido controlar aqui quando NÃO há navbar
         if (mHasNavigationBar) return;
 
-        final int mode = Settings.System.getInt(
-                mContext.getContentResolver(),
-                KEY_CUSTOM_ROTATION_MODE,
-                0
-        );
-
         if (mode == mLastCustomRotationMode) return;
         mLastCustomRotationMode = mode;
 
         final boolean contextual = (mode == 2);
 
-        if (mVideoRotationController != null) {
-            if (contextual) {
-                mVideoRotationController.start();
-            } else {
-                mVideoRotationController.stop();
-            }
+        if (contextual) {
+            getOrCreateVideoRotationController().start();
+        } else if (mVideoRotationController != null) {
+            mVideoRotationController.stop();
+        }
+    }
+
+    private void updateLowActivityMode() {
+        final boolean lowActivity = mVideoArmed && !mStatusBarRequested && !mStatusBarTransient
+                && isAttachedToWindow();
+        if (lowActivity == mLowActivity) return;
+        mLowActivity = lowActivity;
+        Log.d(TAG, "lowActivity=" + lowActivity);
+        if (lowActivity) {
+            Dependency.get(DarkIconDispatcher.class).removeDarkReceiver(mBattery);
+            mClockController.removeDarkReceiver();
+            return;
+        }
+
+        // Bars are coming back: catch up on everything deferred in one pass.
+        Trace.beginSection("PhoneStatusBarView#flushLowActivity");
+        Dependency.get(DarkIconDispatcher.class).addDarkReceiver(mBattery);
+        mClockController.addDarkReceiver();
+        if (mPendingResources) {
+            updateResources();
+        }
+        if (mPendingLayout || updateDisplayParameters()) {
+            updateLayoutForCutout();
+            requestLayout();
+        }
+        if (truncatedStatusBarIconsFix() && (mPendingResources || mPendingLayout)) {
+            updateWindowHeight();
+        }
+        mPendingResources = mPendingLayout = false;
+        Trace.endSection();
+    }
+
+    /** Created on first use of contextual mode rather than during status bar inflation. */
+    private VideoRotationController getOrCreateVideoRotationController() {
+        if (mVideoRotationController == null) {
+            Trace.beginSection("PhoneStatusBarView#createVideoRotationController");
+            mVideoRotationController = new VideoRotationController(mContext,
+                    new HandlerExecutor(new Handler(Dependency.get(Dependency.BG_LOOPER))),
+                    RotationSettingsHub.getInstance(mContext));
+            Trace.endSection();
         }
+        return mVideoRotationController;
     }
 
     public PhoneStatusBarView(Context context, AttributeSet attrs) {
         super(context, attrs);
+        mLastConfiguration.updateFrom(context.getResources().getConfiguration());
         mCommandQueue = Dependency.get(CommandQueue.class);
         mContentInsetsProvider = Dependency.get(StatusBarContentInsetsProvider.class);
         mStatusBarWindowController = Dependency.get(StatusBarWindowController.class);
@@ -166,12 +265,16 @@ public class PhoneStatusBarView extends FrameLayout implements Callbacks {
                     R.drawable.ic_sysbar_rotate_button_cw_start_90,
                     () -> getDisplay().getRotation());
             mRotationButtonController.setRotationButton(floatingRotationButton, null);
-            mVideoRotationController = new VideoRotationController(context);
         }
     }
 
     @Override
     public void onRotationProposal(final int rotation, boolean isValid) {
+        // The armed video controller applies this rotation itself, don't suggest it.
+        if (mVideoRotationController != null
+                && mVideoRotationController.shouldSuppressRotationProposal()) {
+            return;
+        }
         if (mRotationButtonController != null && !hasNavigationBar()) {
             mRotationButtonController.onRotationProposal(rotation, isValid);
         }
@@ -220,20 +323,26 @@ public class PhoneStatusBarView extends FrameLayout implements Callbacks {
         if (mRotationButtonController != null && !hasNavigationBar()) {
             mCommandQueue.addCallback(this);
         }
+        // Armed state comes from whichever controller runs, the nav bar's one included.
+        mCommandQueue.addCallback(mSystemBarsCallback);
+        VideoRotationState.getInstance().addCallback(mVideoRotationCallback);
         // ✅ em vez de start() direto, observa o modo
         if (!mHasNavigationBar) {
-            mContext.getContentResolver().registerContentObserver(
-                    Settings.System.getUriFor(KEY_CUSTOM_ROTATION_MODE),
-                    false,
-                    mCustomRotationModeObserver
-            );
-            applyCustomRotationModeForStatusBar();
+            RotationSettingsHub.getInstance(mContext).addListener(
+                    RotationSettingsHub.KEY_CUSTOM_ROTATION_MODE, mContext.getMainExecutor(),
+                    mCustomRotationModeListener);
         }
     }
 
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
+        mLowActivity = false;
+        mPendingResources = mPendingLayout = false;
+        mVideoArmed = false;
+        mStatusBarTransient = false;
+        mCommandQueue.removeCallback(mSystemBarsCallback);
+        VideoRotationState.getInstance().removeCallback(mVideoRotationCallback);
         Dependency.get(DarkIconDispatcher.class).removeDarkReceiver(mBattery);
         mClockController.removeDarkReceiver();
         mDisplayCutout = null;
@@ -242,7 +351,9 @@ public class PhoneStatusBarView extends FrameLayout implements Callbacks {
             mCommandQueue.removeCallback(this);
         }
         if (!mHasNavigationBar) {
-            mContext.getContentResolver().unregisterContentObserver(mCustomRotationModeObserver);
+            RotationSettingsHub.getInstance(mContext).removeListener(
+                    RotationSettingsHub.KEY_CUSTOM_ROTATION_MODE, mCustomRotationModeListener);
+            mLastCustomRotationMode = -1;
             if (mVideoRotationController != null) {
                 mVideoRotationController.stop();
             }
@@ -255,10 +366,22 @@ public class PhoneStatusBarView extends FrameLayout implements Callbacks {
     @Override
     protected void onConfigurationChanged(Configuration newConfig) {
         super.onConfigurationChanged(newConfig);
-        updateResources();
+        final boolean displayChanged = updateDisplayParameters();
+        // A rotation alone is covered by the per-rotation layout cache below.
+        final boolean resourcesChanged =
+                (mLastConfiguration.updateFrom(newConfig) & ~ROTATION_CONFIG_CHANGES) != 0;
+        if (mLowActivity) {
+            // Hidden bar: apply when it shows again, see updateLowActivityMode().
+            mPendingResources |= resourcesChanged;
+            mPendingLayout |= displayChanged;
+            return;
+        }
+        if (resourcesChanged) {
+            updateResources();
+        }
 
         // May trigger cutout space layout-ing
-        if (updateDisplayParameters()) {
+        if (displayChanged) {
             updateLayoutForCutout();
             requestLayout();
         }
@@ -273,7 +396,9 @@ public class PhoneStatusBarView extends FrameLayout implements Callbacks {
 
     @Override
     public WindowInsets onApplyWindowInsets(WindowInsets insets) {
-        if (updateDisplayParameters()) {
+        if (mLowActivity) {
+            mPendingLayout |= updateDisplayParameters();
+        } else if (updateDisplayParameters()) {
             updateLayoutForCutout();
             requestLayout();
         }
@@ -363,87 +488,182 @@ public class PhoneStatusBarView extends FrameLayout implements Callbacks {
     }
 
     public void updateResources() {
-        mCutoutSideNudge = getResources().getDimensionPixelSize(
-                R.dimen.display_cutout_margin_consumption);
+        // Resources may resolve differently now, drop every cached layout.
+        mLayoutCache.clear();
+        mResourceSnapshots[0] = mResourceSnapshots[1] = null;
 
         updateStatusBarHeight();
     }
 
+    /**
+     * @return the snapshot for the current orientation, created on first use after
+     *         {@link #updateResources()}.
+     */
+    private ResourceSnapshot getResourceSnapshot() {
+        return getResourceSnapshot(false /* otherOrientation */);
+    }
+
+    /**
+     * @param otherOrientation resolve for the orientation the display is about to switch to,
+     *         through a configuration context, instead of the current one.
+     */
+    private ResourceSnapshot getResourceSnapshot(boolean otherOrientation) {
+        final Configuration config = getResources().getConfiguration();
+        final boolean landscape = (config.orientation == Configuration.ORIENTATION_LANDSCAPE)
+                != otherOrientation;
+        final int index = landscape ? 1 : 0;
+        ResourceSnapshot snapshot = mResourceSnapshots[index];
+        if (snapshot == null || snapshot.smallestScreenWidthDp != config.smallestScreenWidthDp) {
+            Resources res = getResources();
+            if (otherOrientation) {
+                final Configuration target = new Configuration(config);
+                target.orientation = landscape
+                        ? Configuration.ORIENTATION_LANDSCAPE : Configuration.ORIENTATION_PORTRAIT;
+                target.screenWidthDp = config.screenHeightDp;
+                target.screenHeightDp = config.screenWidthDp;
+                res = mContext.createConfigurationContext(target).getResources();
+            }
+            snapshot = new ResourceSnapshot(res, config.smallestScreenWidthDp, this);
+            mResourceSnapshots[index] = snapshot;
+        }
+        return snapshot;
+    }
+
     private void updateStatusBarHeight() {
-        final int waterfallTopInset =
-                mDisplayCutout == null ? 0 : mDisplayCutout.getWaterfallInsets().top;
+        applyStatusBarHeight(getLayoutEntry());
+    }
+
+    private void applyStatusBarHeight(LayoutEntry entry) {
         ViewGroup.LayoutParams layoutParams = getLayoutParams();
-        mStatusBarHeight = SystemBarUtils.getStatusBarHeight(mContext);
-        layoutParams.height = mStatusBarHeight - waterfallTopInset;
-        updateSystemIconsContainerHeight();
-        updatePaddings();
+        mStatusBarHeight = entry.statusBarHeight;
+        layoutParams.height = mStatusBarHeight - entry.waterfallTopInset;
+        updateSystemIconsContainerHeight(entry);
+        updatePaddings(entry);
         setLayoutParams(layoutParams);
     }
 
-    private void updateSystemIconsContainerHeight() {
-        View systemIconsContainer = findViewById(R.id.system_icons);
-        ViewGroup.LayoutParams layoutParams = systemIconsContainer.getLayoutParams();
-        int newSystemIconsHeight =
-                getResources().getDimensionPixelSize(R.dimen.status_bar_system_icons_height);
-        if (layoutParams.height != newSystemIconsHeight) {
-            layoutParams.height = newSystemIconsHeight;
-            systemIconsContainer.setLayoutParams(layoutParams);
+    private void updateSystemIconsContainerHeight(LayoutEntry entry) {
+        final ResourceSnapshot res = entry.res;
+        ViewGroup.LayoutParams layoutParams = res.systemIcons.getLayoutParams();
+        if (layoutParams.height != res.systemIconsHeight) {
+            layoutParams.height = res.systemIconsHeight;
+            res.systemIcons.setLayoutParams(layoutParams);
         }
     }
 
-    private void updatePaddings() {
-        int statusBarPaddingStart = getResources().getDimensionPixelSize(
-                R.dimen.status_bar_padding_start);
-
-        findViewById(R.id.status_bar_contents).setPaddingRelative(
-                statusBarPaddingStart,
-                getResources().getDimensionPixelSize(R.dimen.status_bar_padding_top),
-                getResources().getDimensionPixelSize(R.dimen.status_bar_padding_end),
+    private void updatePaddings(LayoutEntry entry) {
+        final ResourceSnapshot res = entry.res;
+        res.statusBarContents.setPaddingRelative(
+                res.paddingStart,
+                res.paddingTop,
+                res.paddingEnd,
                 0);
 
-        findViewById(R.id.notification_lights_out)
-                .setPaddingRelative(0, statusBarPaddingStart, 0, 0);
+        res.notificationLightsOut.setPaddingRelative(0, res.paddingStart, 0, 0);
 
-        findViewById(R.id.system_icons).setPaddingRelative(
-                getResources().getDimensionPixelSize(R.dimen.status_bar_icons_padding_start),
-                getResources().getDimensionPixelSize(R.dimen.status_bar_icons_padding_top),
-                getResources().getDimensionPixelSize(R.dimen.status_bar_icons_padding_end),
-                getResources().getDimensionPixelSize(R.dimen.status_bar_icons_padding_bottom)
+        res.systemIcons.setPaddingRelative(
+                res.iconsPaddingStart,
+                res.iconsPaddingTop,
+                res.iconsPaddingEnd,
+                res.iconsPaddingBottom
         );
     }
 
     private void updateLayoutForCutout() {
-        updateStatusBarHeight();
-        updateCutoutLocation();
-        updateSafeInsets();
+        final LayoutEntry entry = getLayoutEntry();
+        applyStatusBarHeight(entry);
+        updateCutoutLocation(entry);
+        updateSafeInsets(entry);
     }
 
-    private void updateCutoutLocation() {
+    /**
+     * @return the layout values for the current rotation, density, font scale, cutout and display
+     *         size, computing them on first use. They are only cached once attached, before that
+     *         the rotation is not known yet.
+     */
+    private LayoutEntry getLayoutEntry() {
+        LayoutEntry entry = mLayoutCache.get(mRotationOrientation);
+        if (entry != null && entry.matches(mDensity, mFontScale, mDisplayCutout, mDisplaySize)
+                && entry.res.smallestScreenWidthDp
+                        == getResources().getConfiguration().smallestScreenWidthDp) {
+            return entry;
+        }
+        Trace.beginSection("PhoneStatusBarView#computeLayoutEntry");
+        entry = computeLayoutEntry(getResourceSnapshot(), mDisplayCutout, mDisplaySize,
+                SystemBarUtils.getStatusBarHeight(mContext));
+        if (isAttachedToWindow()) {
+            mLayoutCache.put(mRotationOrientation, entry);
+        }
+        Trace.endSection();
+        return entry;
+    }
+
+    private LayoutEntry computeLayoutEntry(ResourceSnapshot res,
+            @Nullable DisplayCutout cutout, @Nullable Rect displaySize, int statusBarHeight) {
+        final LayoutEntry entry = new LayoutEntry(res, mDensity, mFontScale, cutout, displaySize);
+        entry.statusBarHeight = statusBarHeight;
+        entry.waterfallTopInset = cutout == null ? 0 : cutout.getWaterfallInsets().top;
+
+        entry.hasCutout = cutout != null && !cutout.isEmpty();
+        if (entry.hasCutout) {
+            Rect bounds = cutout.getBoundingRectTop();
+            entry.cutoutWidth = bounds.width() - 2 * entry.res.cutoutSideNudge;
+            entry.cutoutHeight = bounds.height();
+        }
+        return entry;
+    }
+
+    /**
+     * Builds the layout entry for {@code targetRotation} from the video rotation hint, before the
+     * configuration change arrives. The cutout and display size are the current ones rotated
+     * into {@code targetRotation}; when the change lands, getLayoutEntry() finds the entry in
+     * {@link #mLayoutCache}, or recomputes it if the real values turn out different.
+     */
+    private void prewarmLayoutEntry(int targetRotation) {
+        if (!isAttachedToWindow() || mDisplaySize == null
+                || targetRotation == mRotationOrientation) {
+            return;
+        }
+        final boolean quarterTurn = ((targetRotation - mRotationOrientation) & 1) != 0;
+        final Rect displaySize = quarterTurn
+                ? new Rect(0, 0, mDisplaySize.height(), mDisplaySize.width())
+                : new Rect(mDisplaySize);
+        final DisplayCutout cutout = mDisplayCutout == null ? null
+                : mDisplayCutout.getRotated(mDisplaySize.width(), mDisplaySize.height(),
+                        mRotationOrientation, targetRotation);
+        final LayoutEntry cached = mLayoutCache.get(targetRotation);
+        if (cached != null && cached.matches(mDensity, mFontScale, cutout, displaySize)) {
+            return;
+        }
+        Trace.beginSection("PhoneStatusBarView#prewarmLayoutEntry");
+        mLayoutCache.put(targetRotation, computeLayoutEntry(getResourceSnapshot(quarterTurn),
+                cutout, displaySize,
+                SystemBarUtils.getStatusBarHeightForRotation(mContext, targetRotation)));
+        Trace.endSection();
+    }
+
+    private void updateCutoutLocation(LayoutEntry entry) {
         // Not all layouts have a cutout (e.g., Car)
         if (mCutoutSpace == null) {
             return;
         }
 
+        // Corner cutouts and insets come from the insets provider, which keeps its own
+        // per-rotation cache and invalidates it on rounded corner or privacy dot changes.
         boolean hasCornerCutout = mContentInsetsProvider.currentRotationHasCornerCutout();
-        if (mDisplayCutout == null || mDisplayCutout.isEmpty() || hasCornerCutout) {
+        if (!entry.hasCutout || hasCornerCutout) {
             mCutoutSpace.setVisibility(View.GONE);
             return;
         }
 
         mCutoutSpace.setVisibility(View.VISIBLE);
         LinearLayout.LayoutParams lp = (LinearLayout.LayoutParams) mCutoutSpace.getLayoutParams();
-
-        Rect bounds = mDisplayCutout.getBoundingRectTop();
-
-        bounds.left = bounds.left + mCutoutSideNudge;
-        bounds.right = bounds.right - mCutoutSideNudge;
-        lp.width = bounds.width();
-        lp.height = bounds.height();
+        lp.width = entry.cutoutWidth;
+        lp.height = entry.cutoutHeight;
     }
 
-    private void updateSafeInsets() {
-        Insets insets = mContentInsetsProvider
-                .getStatusBarContentInsetsForCurrentRotation();
+    private void updateSafeInsets(LayoutEntry entry) {
+        final Insets insets = mContentInsetsProvider.getStatusBarContentInsetsForCurrentRotation();
         setPadding(
                 insets.left,
                 insets.top,
@@ -452,8 +672,7 @@ public class PhoneStatusBarView extends FrameLayout implements Callbacks {
 
         // Apply negative paddings to centered area layout so that we'll actually be on the center.
         final int winRotation = getDisplay().getRotation();
-        LayoutParams centeredAreaParams =
-                (LayoutParams) findViewById(R.id.centered_area).getLayoutParams();
+        LayoutParams centeredAreaParams = (LayoutParams) entry.res.centeredArea.getLayoutParams();
         centeredAreaParams.leftMargin =
                 winRotation == Surface.ROTATION_0 ? -insets.left : 0;
         centeredAreaParams.rightMargin =
@@ -467,4 +686,83 @@ public class PhoneStatusBarView extends FrameLayout implements Callbacks {
     private void updateWindowHeight() {
         mStatusBarWindowController.refreshStatusBarHeight();
     }
+
+    /**
+     * Layout values resolved for one rotation, valid while density, font scale, cutout and
+     * display size stay the same.
+     */
+    private static final class LayoutEntry {
+        final ResourceSnapshot res;
+        final int density;
+        final float fontScale;
+        @Nullable final DisplayCutout cutout;
+        @Nullable final Rect displaySize;
+
+        int statusBarHeight;
+        int waterfallTopInset;
+        boolean hasCutout;
+        int cutoutWidth;
+        int cutoutHeight;
+
+        LayoutEntry(ResourceSnapshot res, int density, float fontScale,
+                @Nullable DisplayCutout cutout, @Nullable Rect displaySize) {
+            this.res = res;
+            this.density = density;
+            this.fontScale = fontScale;
+            this.cutout = cutout;
+            this.displaySize = displaySize;
+        }
+
+        boolean matches(int density, float fontScale, @Nullable DisplayCutout cutout,
+                @Nullable Rect displaySize) {
+            return this.density == density && this.fontScale == fontScale
+                    && Objects.equals(this.cutout, cutout)
+                    && Objects.equals(this.displaySize, displaySize);
+        }
+    }
+
+    /**
+     * Dimensions and child views used by every layout update path. Immutable; dropped by
+     * {@link #updateResources()}, which runs for density, font scale, theme and smallest width
+     * changes, and not reused for another smallest width.
+     */
+    private static final class ResourceSnapshot {
+        final int smallestScreenWidthDp;
+        /**
+         * Draw this many pixels into the left/right side of the cutout to optimally use the space
+         */
+        final int cutoutSideNudge;
+        final int systemIconsHeight;
+        final int paddingStart;
+        final int paddingTop;
+        final int paddingEnd;
+        final int iconsPaddingStart;
+        final int iconsPaddingTop;
+        final int iconsPaddingEnd;
+        final int iconsPaddingBottom;
+
+        final View statusBarContents;
+        final View systemIcons;
+        final View notificationLightsOut;
+        final View centeredArea;
+
+        ResourceSnapshot(Resources res, int smallestScreenWidthDp, PhoneStatusBarView view) {
+            this.smallestScreenWidthDp = smallestScreenWidthDp;
+            cutoutSideNudge = res.getDimensionPixelSize(R.dimen.display_cutout_margin_consumption);
+            systemIconsHeight = res.getDimensionPixelSize(R.dimen.status_bar_system_icons_height);
+            paddingStart = res.getDimensionPixelSize(R.dimen.status_bar_padding_start);
+            paddingTop = res.getDimensionPixelSize(R.dimen.status_bar_padding_top);
+            paddingEnd = res.getDimensionPixelSize(R.dimen.status_bar_padding_end);
+            iconsPaddingStart = res.getDimensionPixelSize(R.dimen.status_bar_icons_padding_start);
+            iconsPaddingTop = res.getDimensionPixelSize(R.dimen.status_bar_icons_padding_top);
+            iconsPaddingEnd = res.getDimensionPixelSize(R.dimen.status_bar_icons_padding_end);
+            iconsPaddingBottom =
+                    res.getDimensionPixelSize(R.dimen.status_bar_icons_padding_bottom);
+
+            statusBarContents = view.findViewById(R.id.status_bar_contents);
+            systemIcons = view.findViewById(R.id.system_icons);
+            notificationLightsOut = view.findViewById(R.id.notification_lights_out);
+            centeredArea = view.findViewById(R.id.centered_area);
+        }
+    }
 }